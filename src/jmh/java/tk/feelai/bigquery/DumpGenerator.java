@@ -0,0 +1,195 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * ベンチマーク用の合成mysqldumpを生成する。
+ * mysqldumpの--extended-insertと同様に、1行のINSERT文が lineLength バイトを超えるまでレコードを連結する。
+ */
+public class DumpGenerator {
+
+    private static final String[] WORDS = { "abc", "Nobody", "x y", "foo_bar", "N", "NULL", ",();", "\"q\"", "日本語", "テスト" };
+    private static final String[] ESCAPES = { "\\'", "\\\\", "\\\"", "\\n", "\\r" };
+
+    /** テーブル数 */
+    public int tables = 4;
+    /** 全テーブルの合計行数。テーブル毎に均等に割り振る。 */
+    public int rows = 10000;
+    /** 1行あたりの列数(先頭のid列を含む) */
+    public int columns = 8;
+    /** id以外の列のうち文字列型(varchar)とする割合 */
+    public double stringRatio = 0.5;
+    /** id以外の値をNULLとする割合 */
+    public double nullRatio = 0.1;
+    /** 文字列を構成する語のうちエスケープ文字とする割合 */
+    public double escapeRatio = 0.05;
+    /** 文字列の平均の語数 */
+    public int stringWords = 4;
+    /** INSERT文1行のバイト数の目安(mysqldumpのnet_buffer_length) */
+    public int lineLength = 0x100000;
+    public long seed = 1;
+
+    public String generate() {
+        StringWriter out = new StringWriter();
+        try {
+            generate(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    public void generate(Writer out) throws IOException {
+        Random random = new Random(seed);
+        // id以外の列の型は 's'(varchar), 'i'(int), 'f'(double), 't'(datetime) のいずれか
+        char[] types = new char[columns];
+        for (int c = 1; c < columns; c++) {
+            types[c] = random.nextDouble() < stringRatio ? 's' : "ift".charAt(c % 3);
+        }
+        out.write("-- MySQL dump 10.13  Distrib 5.7.18, for Linux (x86_64)\n");
+        out.write("/*!40101 SET NAMES utf8 */;\n");
+        StringBuilder line = new StringBuilder(lineLength + 0x1000);
+        int id = 0;
+        for (int t = 0; t < tables; t++) {
+            String tableName = "table" + t;
+            out.write("\n--\n-- Table structure for table `" + tableName + "`\n--\n\n");
+            out.write("DROP TABLE IF EXISTS `" + tableName + "`;\n");
+            out.write("CREATE TABLE `" + tableName + "` (\n");
+            out.write("  `id` int(11) NOT NULL AUTO_INCREMENT,\n");
+            for (int c = 1; c < columns; c++) {
+                out.write("  `c" + c + "` " + columnType(types[c]) + " DEFAULT NULL,\n");
+            }
+            out.write("  PRIMARY KEY (`id`)\n");
+            out.write(") ENGINE=InnoDB DEFAULT CHARSET=utf8;\n\n");
+            out.write("LOCK TABLES `" + tableName + "` WRITE;\n");
+            int tableRows = rows / tables + (t < rows % tables ? 1 : 0);
+            line.setLength(0);
+            for (int r = 0; r < tableRows; r++) {
+                if (line.length() == 0) {
+                    line.append("INSERT INTO `").append(tableName).append("` VALUES ");
+                } else {
+                    line.append(',');
+                }
+                line.append('(').append(++id);
+                for (int c = 1; c < columns; c++) {
+                    line.append(',');
+                    appendValue(line, types[c], random);
+                }
+                line.append(')');
+                if (line.length() >= lineLength || r == tableRows - 1) {
+                    out.append(line).append(";\n");
+                    line.setLength(0);
+                }
+            }
+            out.write("UNLOCK TABLES;\n");
+        }
+        out.flush();
+    }
+
+    private static String columnType(char type) {
+        switch (type) {
+        case 'i':
+            return "int(11)";
+        case 'f':
+            return "double(10,2)";
+        case 't':
+            return "datetime";
+        default:
+            return "varchar(255)";
+        }
+    }
+
+    private void appendValue(StringBuilder line, char type, Random random) {
+        if (random.nextDouble() < nullRatio) {
+            line.append("NULL");
+            return;
+        }
+        switch (type) {
+        case 'i':
+            line.append(random.nextInt(1000000));
+            break;
+        case 'f':
+            line.append(random.nextInt(100000)).append('.').append(random.nextInt(90) + 10);
+            break;
+        case 't':
+            line.append(String.format("'2017-%02d-%02d %02d:%02d:%02d'", random.nextInt(12) + 1, random.nextInt(28) + 1, random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+            break;
+        default:
+            line.append('\'');
+            for (int w = random.nextInt(stringWords * 2 + 1); w > 0; w--) {
+                if (random.nextDouble() < escapeRatio) {
+                    line.append(ESCAPES[random.nextInt(ESCAPES.length)]);
+                } else {
+                    line.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+            line.append('\'');
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: java tk.feelai.bigquery.DumpGenerator [options] output.sql");
+        System.err.println("  options: -tables N -rows N -columns N -string RATIO -null RATIO -escape RATIO -words N -line-length BYTES -seed N");
+    }
+
+    public static void main(String[] args) throws IOException {
+        DumpGenerator generator = new DumpGenerator();
+        int index = 0;
+        while (index < args.length - 1 && args[index].startsWith("-")) {
+            String value = args[index + 1];
+            if ("-tables".equals(args[index])) {
+                generator.tables = Integer.parseInt(value);
+            } else if ("-rows".equals(args[index])) {
+                generator.rows = Integer.parseInt(value);
+            } else if ("-columns".equals(args[index])) {
+                generator.columns = Integer.parseInt(value);
+            } else if ("-string".equals(args[index])) {
+                generator.stringRatio = Double.parseDouble(value);
+            } else if ("-null".equals(args[index])) {
+                generator.nullRatio = Double.parseDouble(value);
+            } else if ("-escape".equals(args[index])) {
+                generator.escapeRatio = Double.parseDouble(value);
+            } else if ("-words".equals(args[index])) {
+                generator.stringWords = Integer.parseInt(value);
+            } else if ("-line-length".equals(args[index])) {
+                generator.lineLength = Integer.parseInt(value);
+            } else if ("-seed".equals(args[index])) {
+                generator.seed = Long.parseLong(value);
+            } else {
+                usage();
+                return;
+            }
+            index += 2;
+        }
+        if (index != args.length - 1) {
+            usage();
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[index]), "UTF-8"));
+        try {
+            generator.generate(out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.arnx.jsonic.JSONException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Json2csvの変換性能を計測する。parseは値の取り出しのみ、convertはcsvの書式化までを含む(書き込み先は破棄する)。
+ * parse, convertはjsonic、parseBytes, convertBytesはJsonTokenizerによる変換。
+ *   java -jar target/benchmarks.jar Json2csvBenchmark -prof gc -p nestedFields=0,4
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@OperationsPerInvocation(Throughput.ROWS)
+@State(Scope.Benchmark)
+public class Json2csvBenchmark {
+
+    @Param({ "8" })
+    public int fields;
+    @Param({ "0" })
+    public int nestedFields;
+    @Param({ "0.5" })
+    public double stringRatio;
+    @Param({ "0.1" })
+    public double nullRatio;
+    @Param({ "0.05" })
+    public double escapeRatio;
+
+    private String json;
+    private byte[] utf8;
+    private long bytes;
+    private final List<Pattern> rootPath = new ArrayList<Pattern>();
+    private final Pattern fieldFilter = Pattern.compile(".*");
+
+    @Setup(Level.Trial)
+    public void generate() {
+        JsonGenerator generator = new JsonGenerator();
+        generator.rows = Throughput.ROWS;
+        generator.fields = fields;
+        generator.nestedFields = nestedFields;
+        generator.stringRatio = stringRatio;
+        generator.nullRatio = nullRatio;
+        generator.escapeRatio = escapeRatio;
+        json = generator.generate();
+        utf8 = json.getBytes(Charset.forName("UTF-8"));
+        bytes = utf8.length;
+        rootPath.add(Pattern.compile(""));
+    }
+
+    /**
+     * 値を数えるだけで出力しない。
+     */
+    private static class CountingRowWriter implements Json2csv.RowWriter {
+        int values;
+        @Override
+        public void string(String name, String value) {
+            values++;
+        }
+        @Override
+        public void number(String name, Number value) {
+            values++;
+        }
+        @Override
+        public void nullValue(String name) {
+            values++;
+        }
+        @Override
+        public void endRow() {
+        }
+    }
+
+    private static class CountingByteRowWriter extends CountingRowWriter implements Json2csv.ByteRowWriter {
+        @Override
+        public void string(String name, byte[] value, int off, int len) {
+            values++;
+        }
+        @Override
+        public void number(String name, byte[] value, int off, int len) {
+            values++;
+        }
+    }
+
+    @Benchmark
+    public int parse(Throughput throughput) throws IOException, JSONException {
+        CountingRowWriter out = new CountingRowWriter();
+        Json2csv.conv(rootPath, fieldFilter, 0, false, new StringReader(json), out);
+        throughput.add(bytes);
+        return out.values;
+    }
+
+    @Benchmark
+    public void convert(Throughput throughput) throws IOException, JSONException {
+        PrintWriter out = new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+            }
+            @Override
+            public void flush() {
+            }
+            @Override
+            public void close() {
+            }
+        });
+        Json2csv.conv(rootPath, fieldFilter, 0, false, new StringReader(json), out);
+        out.flush();
+        throughput.add(bytes);
+    }
+
+    @Benchmark
+    public int parseBytes(Throughput throughput) throws IOException {
+        CountingByteRowWriter out = new CountingByteRowWriter();
+        Json2csv.conv(rootPath, fieldFilter, 0, false, new ByteArrayInputStream(utf8), out);
+        throughput.add(bytes);
+        return out.values;
+    }
+
+    @Benchmark
+    public void convertBytes(Throughput throughput) throws IOException {
+        Json2csv.CsvStreamRowWriter out = new Json2csv.CsvStreamRowWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        Json2csv.conv(rootPath, fieldFilter, 0, false, new ByteArrayInputStream(utf8), out);
+        out.flush();
+        throughput.add(bytes);
+    }
+}
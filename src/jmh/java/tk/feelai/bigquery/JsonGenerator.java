@@ -0,0 +1,164 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * ベンチマーク用の合成JSONを生成する。
+ * 1オブジェクトを1行とする配列で、Json2csvの --root / --nest 0 で全ての行を変換できる形式とする。
+ * nestedFieldsが1以上の場合は、その数のフィールドを入れ子のオブジェクト"nested"に入れる。
+ */
+public class JsonGenerator {
+
+    private static final String[] WORDS = { "abc", "Nobody", "x y", "foo_bar", "null", ",[]{}:", "日本語", "テスト" };
+    private static final String[] ESCAPES = { "\\\"", "\\\\", "\\/", "\\n", "\\t", "\\u3042" };
+
+    /** オブジェクト(行)数 */
+    public int rows = 10000;
+    /** 1行あたりのフィールド数 */
+    public int fields = 8;
+    /** 入れ子のオブジェクトに入れるフィールド数 */
+    public int nestedFields = 0;
+    /** 文字列型とするフィールドの割合。残りは数値と真偽値 */
+    public double stringRatio = 0.5;
+    /** 値をnullとする割合 */
+    public double nullRatio = 0.1;
+    /** 文字列を構成する語のうちエスケープ文字とする割合 */
+    public double escapeRatio = 0.05;
+    /** 文字列の平均の語数 */
+    public int stringWords = 4;
+    public long seed = 1;
+
+    public String generate() {
+        StringWriter out = new StringWriter();
+        try {
+            generate(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    public void generate(Writer out) throws IOException {
+        Random random = new Random(seed);
+        // 各フィールドの型は 's'(文字列), 'i'(整数), 'f'(小数), 'b'(真偽値) のいずれか
+        char[] types = new char[fields];
+        for (int f = 0; f < fields; f++) {
+            types[f] = random.nextDouble() < stringRatio ? 's' : "ifb".charAt(f % 3);
+        }
+        StringBuilder row = new StringBuilder();
+        out.write("[\n");
+        for (int r = 0; r < rows; r++) {
+            row.setLength(0);
+            row.append(r == 0 ? "" : ",\n").append('{');
+            int flat = fields - Math.min(nestedFields, fields);
+            for (int f = 0; f < fields; f++) {
+                if (f == flat) {
+                    row.append(f == 0 ? "" : ",").append("\"nested\":{");
+                } else if (f > 0) {
+                    row.append(',');
+                }
+                row.append("\"f").append(f).append("\":");
+                appendValue(row, types[f], random);
+            }
+            if (flat < fields) {
+                row.append('}');
+            }
+            row.append('}');
+            out.append(row);
+        }
+        out.write("\n]\n");
+        out.flush();
+    }
+
+    private void appendValue(StringBuilder row, char type, Random random) {
+        if (random.nextDouble() < nullRatio) {
+            row.append("null");
+            return;
+        }
+        switch (type) {
+        case 'i':
+            row.append(random.nextInt(1000000));
+            break;
+        case 'f':
+            row.append(random.nextInt(100000)).append('.').append(random.nextInt(90) + 10);
+            break;
+        case 'b':
+            row.append(random.nextBoolean());
+            break;
+        default:
+            row.append('"');
+            for (int w = random.nextInt(stringWords * 2 + 1); w > 0; w--) {
+                if (random.nextDouble() < escapeRatio) {
+                    row.append(ESCAPES[random.nextInt(ESCAPES.length)]);
+                } else {
+                    row.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+            row.append('"');
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: java tk.feelai.bigquery.JsonGenerator [options] output.json");
+        System.err.println("  options: -rows N -fields N -nested N -string RATIO -null RATIO -escape RATIO -words N -seed N");
+    }
+
+    public static void main(String[] args) throws IOException {
+        JsonGenerator generator = new JsonGenerator();
+        int index = 0;
+        while (index < args.length - 1 && args[index].startsWith("-")) {
+            String value = args[index + 1];
+            if ("-rows".equals(args[index])) {
+                generator.rows = Integer.parseInt(value);
+            } else if ("-fields".equals(args[index])) {
+                generator.fields = Integer.parseInt(value);
+            } else if ("-nested".equals(args[index])) {
+                generator.nestedFields = Integer.parseInt(value);
+            } else if ("-string".equals(args[index])) {
+                generator.stringRatio = Double.parseDouble(value);
+            } else if ("-null".equals(args[index])) {
+                generator.nullRatio = Double.parseDouble(value);
+            } else if ("-escape".equals(args[index])) {
+                generator.escapeRatio = Double.parseDouble(value);
+            } else if ("-words".equals(args[index])) {
+                generator.stringWords = Integer.parseInt(value);
+            } else if ("-seed".equals(args[index])) {
+                generator.seed = Long.parseLong(value);
+            } else {
+                usage();
+                return;
+            }
+            index += 2;
+        }
+        if (index != args.length - 1) {
+            usage();
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[index]), "UTF-8"));
+        try {
+            generator.generate(out);
+        } finally {
+            out.close();
+        }
+    }
+}
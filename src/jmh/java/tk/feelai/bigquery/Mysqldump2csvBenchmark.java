@@ -0,0 +1,244 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mysqldump2csvの変換性能を計測する。
+ * parse*はINSERT文からcsvのバイト列への変換のみ、convert*はschemaとcsvファイルの書き込みまでを含む。
+ *   java -jar target/benchmarks.jar Mysqldump2csvBenchmark -prof gc -p columns=8,32 -p escapeRatio=0,0.2
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@OperationsPerInvocation(Throughput.ROWS)
+@State(Scope.Benchmark)
+public class Mysqldump2csvBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({ "4" })
+    public int tables;
+    @Param({ "8" })
+    public int columns;
+    @Param({ "0.5" })
+    public double stringRatio;
+    @Param({ "0.1" })
+    public double nullRatio;
+    @Param({ "0.05" })
+    public double escapeRatio;
+    @Param({ "1048576" })
+    public int lineLength;
+
+    private File workDir;
+    private String dump;
+    private byte[] dumpBytes;
+    private File dumpFile;
+    private String[] lines;
+    private int[] valuesOffsets;
+    private int[] lineStarts;
+    private int[] lineEnds;
+    private int[] bytesValuesOffsets;
+    private Mysqldump2csv parser;
+    private final Mysqldump2csv.RecordBuffer recordBuffer = new Mysqldump2csv.RecordBuffer();
+    private Mysqldump2csv.MappedRange mappedRange;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        DumpGenerator generator = new DumpGenerator();
+        generator.tables = tables;
+        generator.rows = Throughput.ROWS;
+        generator.columns = columns;
+        generator.stringRatio = stringRatio;
+        generator.nullRatio = nullRatio;
+        generator.escapeRatio = escapeRatio;
+        generator.lineLength = lineLength;
+        dump = generator.generate();
+        dumpBytes = dump.getBytes(UTF8);
+        workDir = Files.createTempDirectory("mysqldump2csv-bench").toFile();
+        dumpFile = new File(workDir, "dump.sql");
+        OutputStream out = new FileOutputStream(dumpFile);
+        try {
+            out.write(dumpBytes);
+        } finally {
+            out.close();
+        }
+        parser = new Mysqldump2csv(new File(workDir, "parse"));
+        mappedRange = new Mysqldump2csv.MappedRange(dumpBytes, 0);
+
+        // INSERT文の行とVALUES以降の位置を文字列とバイト列のそれぞれで求めておく
+        List<String> insertLines = new ArrayList<String>();
+        List<Integer> starts = new ArrayList<Integer>();
+        int pos = 0;
+        for (String line : dump.split("\n")) {
+            if (line.startsWith("INSERT INTO `")) {
+                insertLines.add(line);
+                starts.add(pos);
+            }
+            pos += line.getBytes(UTF8).length + 1;
+        }
+        lines = insertLines.toArray(new String[insertLines.size()]);
+        valuesOffsets = new int[lines.length];
+        lineStarts = new int[lines.length];
+        lineEnds = new int[lines.length];
+        bytesValuesOffsets = new int[lines.length];
+        for (int a = 0; a < lines.length; a++) {
+            // VALUES以前はASCIIのみのため文字数とバイト数が一致する
+            valuesOffsets[a] = lines[a].indexOf("` VALUES ") + "` VALUES ".length();
+            lineStarts[a] = starts.get(a);
+            bytesValuesOffsets[a] = lineStarts[a] + valuesOffsets[a];
+            lineEnds[a] = lineStarts[a] + lines[a].getBytes(UTF8).length;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        delete(workDir);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * INSERT文を文字列としてcsvに変換し、出力の文字コードに変換する(saveRecords()の書き込み前まで)。
+     */
+    @Benchmark
+    public int parse(Throughput throughput) {
+        int length = 0;
+        for (int a = 0; a < lines.length; a++) {
+            recordBuffer.clear();
+            parser.convRecords(lines[a], valuesOffsets[a], recordBuffer);
+            ByteBuffer records = recordBuffer.encode();
+            length += records.limit();
+        }
+        throughput.add(dumpBytes.length);
+        return length;
+    }
+
+    /**
+     * INSERT文をバイト列のままcsvに変換する(-mmapの変換処理)。
+     */
+    @Benchmark
+    public int parseBytes(Throughput throughput) {
+        mappedRange.length = 0;
+        for (int a = 0; a < lineStarts.length; a++) {
+            Mysqldump2csv.convRecords(dumpBytes, lineStarts[a], bytesValuesOffsets[a], lineEnds[a], mappedRange);
+        }
+        throughput.add(dumpBytes.length);
+        return mappedRange.length;
+    }
+
+    /**
+     * convert*の出力先とオプション。
+     */
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({ "", ".gz" })
+        public String compressSuffix;
+        @Param({ "1" })
+        public int threads;
+        @Param({ "134217728" })
+        public long maxCsvLength;
+
+        private PrintStream err;
+
+        /**
+         * テーブル毎の進捗表示で計測結果が埋もれないようにする。
+         */
+        @Setup(Level.Trial)
+        public void silence() {
+            err = System.err;
+            System.setErr(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+
+        @TearDown(Level.Trial)
+        public void restore() {
+            System.setErr(err);
+        }
+
+        Mysqldump2csv newConverter(File outDir) {
+            Mysqldump2csv converter = new Mysqldump2csv(outDir);
+            converter.threads = threads;
+            converter.maxCsvLength = maxCsvLength;
+            return converter;
+        }
+    }
+
+    /**
+     * ダンプ全体をconv()で変換してcsvファイルに書き込む。
+     */
+    @Benchmark
+    public File convert(Output output, Throughput throughput) throws IOException {
+        File outDir = new File(workDir, "conv");
+        output.newConverter(outDir).conv(new BufferedReader(new StringReader(dump), 0x10000), output.compressSuffix);
+        throughput.add(dumpBytes.length);
+        return outDir;
+    }
+
+    /**
+     * ダンプファイル全体をconvMapped()で変換してcsvファイルに書き込む。
+     */
+    @Benchmark
+    public File convertMapped(Output output, Throughput throughput) throws IOException {
+        File outDir = new File(workDir, "mapped");
+        output.newConverter(outDir).convMapped(dumpFile, 0, output.compressSuffix);
+        throughput.add(dumpBytes.length);
+        return outDir;
+    }
+}
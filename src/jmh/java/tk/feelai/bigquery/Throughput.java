@@ -0,0 +1,46 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 処理したデータ量をJMHの補助カウンタとして報告する。スループット計測では megabytes が MB/s として出力される。
+ * 各ベンチマークは1回の呼び出しで ROWS 行を処理し、@OperationsPerInvocation(ROWS) を指定するため、
+ * 主スコアは行/秒、-prof gc の gc.alloc.rate.norm は1行あたりの割り当てバイト数になる。
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+
+    /** 1回の呼び出しで処理する行数 */
+    static final int ROWS = 10000;
+    private static final double MB = 1 << 20;
+
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        megabytes = 0;
+    }
+
+    public void add(long bytes) {
+        megabytes += bytes / MB;
+    }
+}
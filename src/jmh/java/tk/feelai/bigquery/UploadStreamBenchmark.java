@@ -0,0 +1,124 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.http.InputStreamContent;
+
+/**
+ * CsvUploaderがcsvファイルを送信する際の読み込み(展開を含む)の性能を計測する。送信先は破棄し、MB/sは送信するバイト数で数える。
+ *   java -jar target/benchmarks.jar UploadStreamBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@OperationsPerInvocation(Throughput.ROWS)
+@State(Scope.Benchmark)
+public class UploadStreamBenchmark {
+
+    @Param({ "", ".gz", ".zip" })
+    public String compressSuffix;
+    @Param({ "8" })
+    public int columns;
+    @Param({ "false" })
+    public boolean resumable;
+    @Param({ "true" })
+    public boolean useGZipContent;
+
+    private File workDir;
+    private File[] chunks;
+
+    @Setup(Level.Trial)
+    public void convert() throws IOException {
+        DumpGenerator generator = new DumpGenerator();
+        generator.rows = Throughput.ROWS;
+        generator.columns = columns;
+        workDir = Files.createTempDirectory("upload-bench").toFile();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new CountingOutputStream()));
+        try {
+            new Mysqldump2csv(workDir).conv(new BufferedReader(new StringReader(generator.generate())), compressSuffix);
+        } finally {
+            System.setErr(err);
+        }
+        final Pattern chunk = Pattern.compile("^.+\\.[0-9]+\\.csv" + Pattern.quote(compressSuffix) + "$");
+        chunks = workDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return chunk.matcher(name).matches();
+            }
+        });
+        Arrays.sort(chunks);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        Mysqldump2csvBenchmark.delete(workDir);
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+        @Override
+        public void write(int b) {
+            count++;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * 全てのチャンクをHTTPクライアントと同様にInputStreamContent.writeTo()で書き出す。
+     */
+    @Benchmark
+    public long upload(Throughput throughput) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        for (File csv : chunks) {
+            InputStreamContent content = CsvUploader.openContent(csv, resumable, useGZipContent);
+            content.writeTo(out);
+        }
+        throughput.add(out.count);
+        return out.count;
+    }
+}
@@ -0,0 +1,265 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Avroのobject container形式(deflate圧縮)のファイルを書き出す。
+ * レコードはEncoderでバイナリ形式に変換済みのバイト列として受け取り、そのままブロックに連結する。
+ * スキーマはschema()で作成する、Bigqueryの型(INTEGER, FLOAT, TIMESTAMP, STRING)に対応したnullableなフィールドのみのレコード型とする。
+ */
+public class AvroWriter implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 0x40000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = { 'O', 'b', 'j', 1 };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final byte[] sync = new byte[16];
+    private final Encoder block = new Encoder();
+    private final Encoder header = new Encoder();
+    private final Deflater deflater;
+    private byte[] compressed = new byte[0x10000];
+    private long blockCount;
+
+    public AvroWriter(OutputStream out, String schema) throws IOException {
+        this(out, schema, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+    }
+
+    public AvroWriter(OutputStream out, String schema, int level, int blockSize) throws IOException {
+        this.out = out;
+        this.blockSize = blockSize;
+        deflater = new Deflater(level, true);
+        new Random().nextBytes(sync);
+        header.writeFixed(MAGIC, 0, MAGIC.length);
+        header.writeLong(2);
+        header.writeString("avro.schema");
+        header.writeBytes(schema.getBytes(UTF8));
+        header.writeString("avro.codec");
+        header.writeBytes("deflate".getBytes(UTF8));
+        header.writeLong(0);
+        header.writeFixed(sync, 0, sync.length);
+        out.write(header.buffer(), 0, header.length());
+    }
+
+    /**
+     * バイナリ形式に変換済みのレコードを1件追加する。
+     */
+    public void append(byte[] datum, int off, int len) throws IOException {
+        block.writeFixed(datum, off, len);
+        blockCount++;
+        if (block.length() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockCount == 0) {
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(block.buffer(), 0, block.length());
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        header.clear();
+        header.writeLong(blockCount);
+        header.writeLong(size);
+        out.write(header.buffer(), 0, header.length());
+        out.write(compressed, 0, size);
+        out.write(sync);
+        block.clear();
+        blockCount = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * テーブル名とBigqueryの型からAvroのスキーマ(JSON)を作成する。TIMESTAMPはtimestamp-microsとする。
+     */
+    public static String schema(String tableName, String[] names, String[] types) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"type\":\"record\",\"name\":\"").append(name(tableName)).append("\",\"fields\":[");
+        for (int a = 0; a < names.length; a++) {
+            if (a > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":\"").append(name(names[a])).append("\",\"type\":[\"null\",");
+            if ("INTEGER".equals(types[a])) {
+                sb.append("\"long\"");
+            } else if ("FLOAT".equals(types[a])) {
+                sb.append("\"double\"");
+            } else if ("TIMESTAMP".equals(types[a])) {
+                sb.append("{\"type\":\"long\",\"logicalType\":\"timestamp-micros\"}");
+            } else {
+                sb.append("\"string\"");
+            }
+            sb.append("],\"default\":null}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Avroの名前に使えない文字を_に置き換える。
+     */
+    static String name(String name) {
+        if (name.length() == 0) {
+            return "_";
+        }
+        StringBuilder sb = new StringBuilder(name.length() + 1);
+        for (int a = 0; a < name.length(); a++) {
+            char c = name.charAt(a);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_' || (a > 0 && c >= '0' && c <= '9')) {
+                sb.append(c);
+            } else if (a == 0 && c >= '0' && c <= '9') {
+                sb.append('_').append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Avroのバイナリ形式でデータを書き込む再利用可能なバッファ。
+     * nullableなフィールドはwriteNull()か、writeNotNull()に続けて値を書き込む。
+     */
+    public static class Encoder {
+        private byte[] buffer = new byte[0x10000];
+        private int length;
+
+        public void clear() {
+            length = 0;
+        }
+        public int length() {
+            return length;
+        }
+        /**
+         * 末尾に書き込んだデータを取り消す。
+         */
+        public void setLength(int length) {
+            this.length = length;
+        }
+        public byte[] buffer() {
+            return buffer;
+        }
+        public void writeNull() {
+            writeLong(0);
+        }
+        public void writeNotNull() {
+            writeLong(1);
+        }
+        public void writeLong(long n) {
+            ensureCapacity(10);
+            n = (n << 1) ^ (n >> 63);
+            while ((n & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            buffer[length++] = (byte) n;
+        }
+        public void writeDouble(double d) {
+            ensureCapacity(8);
+            long bits = Double.doubleToLongBits(d);
+            for (int a = 0; a < 8; a++) {
+                buffer[length++] = (byte) bits;
+                bits >>>= 8;
+            }
+        }
+        public void writeBytes(byte[] bytes) {
+            writeLong(bytes.length);
+            writeFixed(bytes, 0, bytes.length);
+        }
+        public void writeFixed(byte[] bytes, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(bytes, off, buffer, length, len);
+            length += len;
+        }
+        public void writeString(CharSequence s) {
+            writeString(s, 0, s.length());
+        }
+        /**
+         * 文字列をUTF-8に変換して書き込む。
+         */
+        public void writeString(CharSequence s, int begin, int end) {
+            int size = 0;
+            for (int a = begin; a < end; a++) {
+                char c = s.charAt(a);
+                if (c < 0x80) {
+                    size++;
+                } else if (c < 0x800) {
+                    size += 2;
+                } else if (Character.isHighSurrogate(c) && a + 1 < end && Character.isLowSurrogate(s.charAt(a + 1))) {
+                    size += 4;
+                    a++;
+                } else if (Character.isSurrogate(c)) {
+                    size++;
+                } else {
+                    size += 3;
+                }
+            }
+            writeLong(size);
+            ensureCapacity(size);
+            for (int a = begin; a < end; a++) {
+                char c = s.charAt(a);
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && a + 1 < end && Character.isLowSurrogate(s.charAt(a + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++a));
+                    buffer[length++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // 対になっていないサロゲートは変換できないため置き換える
+                    buffer[length++] = '?';
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+        private void ensureCapacity(int size) {
+            if (length + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + size));
+            }
+        }
+    }
+}
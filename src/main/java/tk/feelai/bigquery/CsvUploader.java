@@ -16,9 +16,15 @@ package tk.feelai.bigquery;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.googleapis.media.MediaHttpUploader;
 import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.JsonFactory;
@@ -26,8 +32,6 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.Bigquery.Jobs.Insert;
 import com.google.api.services.bigquery.model.Dataset;
-import com.google.api.services.bigquery.model.DatasetList;
-import com.google.api.services.bigquery.model.DatasetList.Datasets;
 import com.google.api.services.bigquery.model.DatasetReference;
 import com.google.api.services.bigquery.model.Job;
 import com.google.api.services.bigquery.model.JobConfiguration;
@@ -45,30 +49,65 @@ import com.google.api.services.bigquery.BigqueryScopes;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class CsvUploader {
 
     private static void usage() {
         System.err.println("Usage:");
-        System.err.println("java tk.feelai.bigquery.CsvUploader project_id dataset_id service_account_email client_secret_p12_file_path dump_dir [(Mysqldump2csv_options | -stdin)]");
+        System.err.println("java tk.feelai.bigquery.CsvUploader project_id dataset_id service_account_email client_secret_p12_file_path dump_dir [-pipe] [-upload-threads N] [-table-upload-threads N] [-metrics PREFIX] [-retry-budget N] [-min-upload-chunk-size BYTES] [-max-upload-chunk-size BYTES] [(Mysqldump2csv_options | -stdin [Mysqldump2csv_options_without_dumpSql])]");
         System.err.println("  dump_dir must contain results of Mysqldump2csv.");
         System.err.println("  dump_dir will be over-written by Dump2scv results if Mysqldump2csv_options or -stdin is specified.");
+        System.err.println("  Please specify -pipe option if you need to upload each csv file as soon as it is converted. Uploaded csv files are deleted.");
+        System.err.println("  Please specify -upload-threads option if you need to upload several files (of several tables) at once. (default=1)");
+        System.err.println("  Please specify -table-upload-threads option if you need to upload several files of the same table at once. (default=1)");
+        System.err.println("  Please specify -metrics option if you need to export conversion and upload metrics into PREFIX.jsonl and PREFIX.prom every 10 seconds.");
+        System.err.println("  Please specify -retry-budget option to limit the total number of files (and tables) uploaded again after failures. (default=" + DEFAULT_RETRY_BUDGET + ")");
+        System.err.println("  Please specify -min-upload-chunk-size and -max-upload-chunk-size options to limit the chunk size of resumable uploads, which is adjusted to the measured throughput in multiples of 256kB. (default=" + DEFAULT_MIN_CHUNK_SIZE + " and " + DEFAULT_MAX_CHUNK_SIZE + ")");
+        System.err.println("  Upload state of each file is recorded in dump_dir/" + MANIFEST_FILE_NAME + " and an interrupted upload resumes from it. (except -pipe)");
     }
     public static void main(String[] args) throws Exception {
         if (args.length < 5) {
@@ -76,26 +115,80 @@ public class CsvUploader {
             return;
         }
         String target = args[4];
-        if (args.length >= 6) {
-            if ("-stdin".equalsIgnoreCase(args[5])) {
-                Mysqldump2csv.main(new String[] { target });
+        int index = 5;
+        boolean pipe = false;
+        int threads = 1, tableThreads = 1, retryBudget = DEFAULT_RETRY_BUDGET;
+        int minChunkSize = DEFAULT_MIN_CHUNK_SIZE, maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+        String metricsPrefix = null;
+        while (args.length > index) {
+            if ("-pipe".equalsIgnoreCase(args[index])) {
+                pipe = true;
+                index++;
+            } else if ("-upload-threads".equalsIgnoreCase(args[index])) {
+                threads = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("-table-upload-threads".equalsIgnoreCase(args[index])) {
+                tableThreads = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("-retry-budget".equalsIgnoreCase(args[index])) {
+                retryBudget = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("-min-upload-chunk-size".equalsIgnoreCase(args[index])) {
+                minChunkSize = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("-max-upload-chunk-size".equalsIgnoreCase(args[index])) {
+                maxChunkSize = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("-metrics".equalsIgnoreCase(args[index])) {
+                metricsPrefix = args[index + 1];
+                index += 2;
             } else {
-                String[] dumpArgs = new String[args.length - 4];
-                System.arraycopy(args, 4, dumpArgs, 0, dumpArgs.length);
+                break;
+            }
+        }
+        String[] dumpArgs = null;
+        if (args.length > index) {
+            if ("-stdin".equalsIgnoreCase(args[index])) {
+                index++;
+            }
+            dumpArgs = new String[args.length - index + 1];
+            dumpArgs[0] = target;
+            System.arraycopy(args, index, dumpArgs, 1, dumpArgs.length - 1);
+        } else if (pipe) {
+            usage();
+            return;
+        }
+        boolean exporting = metricsPrefix != null && Metrics.export(metricsPrefix, Metrics.DEFAULT_INTERVAL);
+        try {
+            if (dumpArgs != null && !pipe) {
                 Mysqldump2csv.main(dumpArgs);
             }
+            CsvUploader uploader = new CsvUploader();
+            uploader.threads = threads;
+            uploader.tableThreads = tableThreads;
+            uploader.retryBudget = retryBudget;
+            uploader.minChunkSize = minChunkSize;
+            uploader.maxChunkSize = maxChunkSize;
+            System.err.print("authorizing ...");
+            uploader.authorize(args[0], args[1], args[2], new File(args[3]));
+            System.err.println(" done");
+            uploader.prepareDataset();
+            if (pipe) {
+                uploader.uploadPipelined(dumpArgs, PIPELINE_QUEUE_SIZE, true, false, 0);
+            } else {
+                uploader.uploadAll(new File(target), true, false, 0);
+            }
+        } finally {
+            if (exporting) {
+                Metrics.close();
+            }
         }
-        CsvUploader uploader = new CsvUploader();
-        System.err.print("authorizing ...");
-        uploader.authorize(args[0], args[1], args[2], new File(args[3]));
-        System.err.println(" done");
-        uploader.prepareDataset();
-        uploader.uploadAll(new File(target), true, false, 0);
     }
     /**
-     * 例外が発生した場合は指定回数までリトライを行う。リトライ間隔は10秒。
+     * 例外が発生した場合は指定回数までリトライを行う。リトライ間隔はbackoff()。
+     * @param operation リトライ回数の計測値に付ける操作名
      */
-    private static <T> T autoRetry(int retryMax, Callable<T> callable) throws Exception {
+    private static <T> T autoRetry(String operation, int retryMax, Callable<T> callable) throws Exception {
         Exception lastException = null;
         for (int a = 0; a <= retryMax; a++) {
             try {
@@ -105,15 +198,31 @@ public class CsvUploader {
                 System.err.println(e);
             }
             if (a < retryMax) {
+                Metrics.counter("csvuploader_retries_total", "Retries by autoRetry per operation.", "operation", operation).inc();
+                long interval = backoff(a);
                 try {
-                    System.err.println("auto-retry in 10 seconds");
-                    Thread.sleep(10000);
+                    System.err.println(String.format("auto-retry in %.1f seconds", interval / 1000.0));
+                    Thread.sleep(interval);
                 } catch (Exception e) {
                 }
             }
         }
         throw new IllegalStateException(lastException);
     }
+
+    /** 最初のリトライ間隔(ミリ秒) */
+    private static final long RETRY_INITIAL_INTERVAL = 2000;
+    /** リトライ間隔の上限(ミリ秒) */
+    private static final long RETRY_MAX_INTERVAL = 120000;
+
+    /**
+     * retry回目(0から)のリトライまでの間隔。RETRY_INITIAL_INTERVALから2倍ずつRETRY_MAX_INTERVALまで延ばす。
+     * 同時に失敗した複数のアップロードが揃ってリトライしないように、間隔の半分から全体までの範囲でばらつかせる。
+     */
+    static long backoff(int retry) {
+        long interval = Math.min(RETRY_INITIAL_INTERVAL << Math.min(retry, 16), RETRY_MAX_INTERVAL);
+        return interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+    }
     /**
      * schemaFile format is "field_name\tfield_type\n"
      */
@@ -139,6 +248,18 @@ public class CsvUploader {
 
     private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
     private static final Pattern FILE_NAME_PATTERN = Pattern.compile("^([^.]+)\\..+$"); 
+    private static final int PIPELINE_QUEUE_SIZE = 4;
+    private static final String AVRO_SUFFIX = ".avro";
+    public static final String MANIFEST_FILE_NAME = "csvuploader.manifest";
+    public static final int DEFAULT_RETRY_BUDGET = 100;
+    public static final int DEFAULT_MIN_CHUNK_SIZE = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 64 << 20;
+    /** tables().listの1ページの件数 */
+    private static final long TABLE_LIST_PAGE_SIZE = 1000;
+    /** 1つのバッチリクエストにまとめる呼び出しの数 */
+    private static final int BATCH_SIZE = 50;
+    /** prepareDataset()で表示する最近のジョブの数 */
+    private static final long RECENT_JOBS = 10;
 
     private HttpTransport httpTransport;
     private String projectId;
@@ -146,6 +267,20 @@ public class CsvUploader {
     private Credential credential;
     private Bigquery bigquery;
     private Dataset dataset;
+    private LoadJobTracker jobTracker;
+    /** データセットのテーブル名。最初に必要になった時に全てのページを読み込み、以降はinsertとdeleteの結果で更新する */
+    private Set<String> tableIds;
+    /** 同時にアップロードするファイル数の上限 */
+    public int threads = 1;
+    /** 同じテーブルに同時にアップロードするファイル数の上限 */
+    public int tableThreads = 1;
+    /** uploadAll()で失敗したファイル(準備に失敗したテーブル)を送り直す回数の合計の上限 */
+    public int retryBudget = DEFAULT_RETRY_BUDGET;
+    /** resumableアップロードのチャンクの大きさの下限。256kBの倍数に切り下げる */
+    public int minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+    /** resumableアップロードのチャンクの大きさの上限。チャンクは送り直しのためにメモリに保持されるため、threads倍のメモリを使う */
+    public int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private ChunkSizeController chunkSizes;
     
     public CsvUploader() throws Exception {
         httpTransport = GoogleNetHttpTransport.newTrustedTransport();
@@ -173,23 +308,21 @@ public class CsvUploader {
         bigquery = new Bigquery.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName("tk.feelai.bigquery.CsvUploader").build();
         System.err.println(" done");
 
-        System.err.print("getting dataset list ...");
-        DatasetList datasetList = bigquery.datasets().list(projectId).execute();
-        System.err.println(" done");
-        try {
-            for (Datasets d : datasetList.getDatasets()) {
-                if (String.format("%s:%s", projectId, datasetId).equals(d.getId())) {
-                    dataset = autoRetry(6, new Callable<Dataset>() {
-                        @Override
-                        public Dataset call() throws Exception {
-                            return bigquery.datasets().get(projectId, datasetId).execute();
-                        }
-                    });
-                    break;
+        System.err.print("getting dataset " + datasetId + " ...");
+        dataset = autoRetry("datasets.get", 6, new Callable<Dataset>() {
+            @Override
+            public Dataset call() throws Exception {
+                try {
+                    return bigquery.datasets().get(projectId, datasetId).execute();
+                } catch (GoogleJsonResponseException e) {
+                    if (e.getStatusCode() == 404) {
+                        return null;
+                    }
+                    throw e;
                 }
             }
-        } catch (NullPointerException e) {
-        }
+        });
+        System.err.println(" done");
         if (dataset == null) {
             System.err.print("creating " + datasetId + " ...");
             DatasetReference datasetRef = new DatasetReference()
@@ -197,7 +330,7 @@ public class CsvUploader {
                 .setDatasetId(datasetId);
             final Dataset outputDataset = new Dataset()
                 .setDatasetReference(datasetRef);
-            dataset = autoRetry(6, new Callable<Dataset>() {
+            dataset = autoRetry("datasets.insert", 6, new Callable<Dataset>() {
                 @Override
                 public Dataset call() throws Exception {
                     return bigquery.datasets().insert(projectId, outputDataset).execute();        
@@ -207,16 +340,18 @@ public class CsvUploader {
         } else {
             System.err.println("attached to " + datasetId);
         }
-        JobList jobList = bigquery.jobs().list(projectId).execute();
+        JobList jobList = bigquery.jobs().list(projectId).setMaxResults(RECENT_JOBS).execute();
         System.err.println("recent job list is below:");
         System.err.println(jobList.getJobs());
     }
 
     /**
-     * 
+     * 失敗したファイルはテーブルを準備し直さずにそのファイルのみbackoff()の間隔を空けて送り直す。送り直す回数の合計はretryBudgetまで。
+     * ファイル毎の状態をdirのMANIFEST_FILE_NAMEに記録し、中断後に再実行した場合はロード済みのファイルを飛ばし、送信済みのファイルはロードジョブの結果を確認して再開する。
+     * 全てのファイルのロードが完了したら記録を削除する。
      * @param dir   *.schemaと*.csvを格納するディレクトリ。
      * @param resumable trueを推奨。1M以下の短いファイルのみfalseにすることができるが、あまりメリットはない。
-     * @param useGZipContent    falseを推奨。trueを指定するとアップロード速度が極度に落ちる。
+     * @param useGZipContent    falseを推奨。trueを指定するとアップロード速度が極度に落ちる。gzip圧縮済みのファイル(.csv.gz)には使わず、圧縮したまま送る。
      * @param maxBadRecords エラーを検知するために0を推奨。
      */
     public void uploadAll(final File dir, boolean resumable, boolean useGZipContent, int maxBadRecords) throws Exception {
@@ -232,66 +367,303 @@ public class CsvUploader {
         for (final File file : files) {
             queue.add(file);
         }
-        while (queue.size() > 0) {
-            final File schema = queue.poll();
-            final String fileName = schema.getName();
-            Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
-            if (!matcher.matches()) {
-                throw new IllegalStateException();
+        UploadManifest manifest = UploadManifest.load(new File(dir, MANIFEST_FILE_NAME));
+        List<FileUpload> retrying = new ArrayList<FileUpload>();
+        int budget = retryBudget;
+        UploadExecutor executor = new UploadExecutor(threads, tableThreads);
+        try {
+            for (int round = 0; queue.size() > 0 || retrying.size() > 0; round++) {
+                if (round > 0) {
+                    int retries = queue.size() + retrying.size();
+                    if (retries > budget) {
+                        throw new IllegalStateException(String.format("retry budget exhausted: %d tables and %d files failed, %d retries left", queue.size(), retrying.size(), budget));
+                    }
+                    budget -= retries;
+                    long interval = backoff(round - 1);
+                    System.err.println(String.format("retrying %d tables and %d files in %.1f seconds (%d retries left)", queue.size(), retrying.size(), interval / 1000.0, budget));
+                    Thread.sleep(interval);
+                }
+                List<FileUpload> uploads = new ArrayList<FileUpload>();
+                List<File> failed = new ArrayList<File>();
+                // 全てのテーブルをまとめて準備する
+                Map<String, File> schemas = new LinkedHashMap<String, File>();
+                Set<String> renew = new HashSet<String>();
+                File schema;
+                while ((schema = queue.poll()) != null) {
+                    Matcher matcher = FILE_NAME_PATTERN.matcher(schema.getName());
+                    if (!matcher.matches()) {
+                        throw new IllegalStateException();
+                    }
+                    String tableName = matcher.group(1);
+                    schemas.put(tableName, schema);
+                    // 前回準備したテーブルにはロード済みのファイルがあるため再作成しない
+                    if (Mysqldump2csv.firstCsvExists(dir, tableName) && !Mysqldump2csv.incremental(dir, tableName) && !UploadManifest.PREPARED.equals(manifest.state(schema))) {
+                        renew.add(tableName);
+                    }
+                }
+                Map<String, Exception> prepareFailures;
+                try {
+                    prepareFailures = schemas.isEmpty() ? Collections.<String, Exception>emptyMap() : prepareTables(schemas, renew);
+                } catch (Exception e) {
+                    prepareFailures = new HashMap<String, Exception>();
+                    for (String tableName : schemas.keySet()) {
+                        prepareFailures.put(tableName, e);
+                    }
+                }
+                for (Map.Entry<String, File> e : schemas.entrySet()) {
+                    String tableName = e.getKey();
+                    if (prepareFailures.containsKey(tableName)) {
+                        failed.add(e.getValue());
+                        System.err.println("Exception occured and appended to retry queue:");
+                        prepareFailures.get(tableName).printStackTrace(System.err);
+                        continue;
+                    }
+                    manifest.set(e.getValue(), UploadManifest.PREPARED, null);
+                    TableReference tref = tableReference(tableName);
+                    int loaded = 0;
+                    for (File csv : listCsvs(dir, tableName)) {
+                        if (UploadManifest.DONE.equals(manifest.state(csv))) {
+                            loaded++;
+                        } else {
+                            uploads.add(new FileUpload(tableName, tref, csv));
+                        }
+                    }
+                    if (loaded > 0) {
+                        System.err.println("  skip " + loaded + " files already loaded into " + tableName);
+                    }
+                }
+                uploads.addAll(retrying);
+                retrying.clear();
+                // 全てのテーブルのアップロードを開始してから、ファイル毎に完了を待つ
+                Map<String, List<FileUpload>> tables = new LinkedHashMap<String, List<FileUpload>>();
+                for (FileUpload upload : uploads) {
+                    List<FileUpload> list = tables.get(upload.tableName);
+                    if (list == null) {
+                        list = new ArrayList<FileUpload>();
+                        tables.put(upload.tableName, list);
+                    }
+                    list.add(upload);
+                }
+                for (List<FileUpload> list : tables.values()) {
+                    submitFiles(executor, list, manifest, resumable, useGZipContent, maxBadRecords);
+                }
+                for (FileUpload upload : uploads) {
+                    try {
+                        waitAll(Collections.singletonList(upload.future));
+                        manifest.set(upload.file, UploadManifest.DONE, null);
+                    } catch (Exception e) {
+                        // ジョブの状態が分からないまま失敗した場合もあるので、ジョブIDは残して再送前に確認する
+                        manifest.set(upload.file, UploadManifest.FAILED, manifest.jobId(upload.file));
+                        retrying.add(upload);
+                        System.err.println("Exception occured and appended to retry queue: " + upload.file.getName());
+                        e.printStackTrace(System.err);
+                    }
+                }
+                queue.addAll(failed);
             }
-            final String tableName = matcher.group(1);
-            try {
-                uploadTable(tableName, schema, resumable, useGZipContent, maxBadRecords);
-            } catch (Exception e) {
-                queue.add(schema);
-                System.err.println("Exception occured and appended to retry queue:");
-                e.printStackTrace(System.err);
+        } finally {
+            executor.shutdown();
+        }
+        // 全てのファイルのロードが完了したので、Mysqldump2csvの次回の差分の起点を確定する
+        for (File file : files) {
+            Matcher matcher = FILE_NAME_PATTERN.matcher(file.getName());
+            if (matcher.matches()) {
+                Mysqldump2csv.commitWatermark(dir, matcher.group(1));
             }
         }
+        manifest.delete();
         System.err.println("upload completed in " + dir);
     }
 
     /**
      * schemaファイルに対応するcsvファイルのうち、ID部が全て0もしくはIDなしのものが存在する場合のみテーブルを再作成し、それ以外は既存レコードを残してレコードを追加する。
+     * Mysqldump2csvが差分のみを出力したテーブル(Mysqldump2csv.incremental())は再作成せずに追加する。
      * ただしBigqueryにテーブルが存在しない場合はテーブルをinsertする。
      * @param tableName テーブル名。"${tableName}.([0-9]+.)?.csv"が読み込み対象ファイルとなる。
      * @param schema    テーブルのスキーマを格納したcsvファイル。
      * @param resumable trueを推奨。1M以下の短いファイルのみfalseにすることができるが、あまりメリットはない。
-     * @param useGZipContent    falseを推奨。trueを指定するとアップロード速度が極度に落ちる。
+     * @param useGZipContent    falseを推奨。trueを指定するとアップロード速度が極度に落ちる。gzip圧縮済みのファイル(.csv.gz)には使わず、圧縮したまま送る。
      * @param maxBadRecords エラーを検知するために0を推奨。
      */
     public void uploadTable(final String tableName, final File schema, boolean resumable, boolean useGZipContent, int maxBadRecords) throws Exception {
+        File dir = schema.getParentFile();
+        TableReference tref = prepareTable(tableName, schema, Mysqldump2csv.firstCsvExists(dir, tableName) && !Mysqldump2csv.incremental(dir, tableName));
+        uploadCsvIntoTable(dir, tableName, tref, resumable, useGZipContent, maxBadRecords);
+        Mysqldump2csv.commitWatermark(dir, tableName);
+    }
+
+    /**
+     * テーブルが存在しなければinsertし、存在すればrenewの場合のみ削除して再作成する。
+     * @param renew 既存のレコードを削除する場合はtrue
+     */
+    public TableReference prepareTable(final String tableName, final File schema, final boolean renew) throws Exception {
+        return autoRetry("tables.prepare", 6, new Callable<TableReference>() {
+            @Override
+            public TableReference call() throws Exception {
+                Map<String, Exception> failed = prepareTables(Collections.singletonMap(tableName, schema), renew ? Collections.singleton(tableName) : Collections.<String>emptySet());
+                if (!failed.isEmpty()) {
+                    throw failed.get(tableName);
+                }
+                return tableReference(tableName);
+            }
+        });
+    }
+
+    /**
+     * 複数のテーブルをprepareTable()と同様に準備する。テーブルの有無はtableIds()で調べ、削除と作成はそれぞれBATCH_SIZE個ずつバッチリクエストにまとめて送る。
+     * 削除済みのテーブルの削除と、作成済みのテーブルの作成は成功として扱う。
+     * @param schemas   テーブル名とschemaファイル
+     * @param renew     既存のレコードを削除するテーブル
+     * @return  準備に失敗したテーブルとその例外。全て成功した場合は空
+     */
+    public synchronized Map<String, Exception> prepareTables(Map<String, File> schemas, Set<String> renew) throws Exception {
+        final Set<String> ids = tableIds();
+        final Map<String, Exception> failed = new LinkedHashMap<String, Exception>();
+        List<String> deletes = new ArrayList<String>();
+        for (String tableName : schemas.keySet()) {
+            if (ids.contains(tableName) && renew.contains(tableName)) {
+                deletes.add(tableName);
+            }
+        }
+        if (!deletes.isEmpty()) {
+            System.err.print("deleting " + deletes.size() + " tables ...");
+            TableBatch batch = new TableBatch(failed);
+            for (final String tableName : deletes) {
+                bigquery.tables().delete(projectId, datasetId, tableName).queue(batch.add(tableName), new JsonBatchCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result, HttpHeaders responseHeaders) {
+                        ids.remove(tableName);
+                    }
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        if (e.getCode() == 404) {
+                            ids.remove(tableName);
+                        } else {
+                            failed.put(tableName, new IOException("failed to delete " + tableName + ": " + e.getMessage()));
+                        }
+                    }
+                });
+            }
+            batch.flush();
+            System.err.println(" done");
+        }
+        List<String> inserts = new ArrayList<String>();
+        for (String tableName : schemas.keySet()) {
+            if (!ids.contains(tableName) && !failed.containsKey(tableName)) {
+                inserts.add(tableName);
+            }
+        }
+        if (!inserts.isEmpty()) {
+            System.err.print("inserting " + inserts.size() + " tables ...");
+            TableBatch batch = new TableBatch(failed);
+            for (final String tableName : inserts) {
+                Table table = new Table()
+                    .setSchema(loadSchema(schemas.get(tableName)))
+                    .setTableReference(tableReference(tableName));
+                bigquery.tables().insert(projectId, datasetId, table).queue(batch.add(tableName), new JsonBatchCallback<Table>() {
+                    @Override
+                    public void onSuccess(Table result, HttpHeaders responseHeaders) {
+                        ids.add(tableName);
+                    }
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        if (e.getCode() == 409) {
+                            ids.add(tableName);
+                        } else {
+                            failed.put(tableName, new IOException("failed to insert " + tableName + ": " + e.getMessage()));
+                        }
+                    }
+                });
+            }
+            batch.flush();
+            System.err.println(" done");
+        }
+        return failed;
+    }
+
+    /**
+     * @return  データセットのテーブル名。最初の呼び出しでtables().listの全てのページを読み込む
+     */
+    private synchronized Set<String> tableIds() throws Exception {
+        if (tableIds != null) {
+            return tableIds;
+        }
         System.err.print("getting table list ...");
-        TableList tableList = bigquery.tables().list(projectId, datasetId).execute();
-        System.err.println(" done");
+        Set<String> ids = new HashSet<String>();
+        String pageToken = null;
+        do {
+            final String token = pageToken;
+            TableList tableList = autoRetry("tables.list", 6, new Callable<TableList>() {
+                @Override
+                public TableList call() throws Exception {
+                    return bigquery.tables().list(projectId, datasetId).setMaxResults(TABLE_LIST_PAGE_SIZE).setPageToken(token).execute();
+                }
+            });
+            if (tableList.getTables() != null) {
+                for (Tables t : tableList.getTables()) {
+                    ids.add(t.getTableReference().getTableId());
+                }
+            }
+            pageToken = tableList.getNextPageToken();
+        } while (pageToken != null);
+        System.err.println(" done (" + ids.size() + " tables)");
+        tableIds = ids;
+        return ids;
+    }
 
-        File dir = schema.getParentFile();
-        boolean renew = Mysqldump2csv.firstCsvExists(dir, tableName), exists = false;
-        try {
-            for (Tables t : tableList.getTables()) {
-                if (String.format("%s:%s.%s", projectId, datasetId, tableName).equals(t.getId())) {
-                    exists = true;
-                    if (renew) {
-                        System.err.print("deleting " + tableName + " table ...");
-                        bigquery.tables().delete(projectId, datasetId, tableName).execute();
-                        System.err.println(" done");
+    /**
+     * tables()の呼び出しをBATCH_SIZE個ずつまとめて送るバッチリクエスト。送信自体に失敗した場合は、その回にまとめた全てのテーブルを失敗とする。
+     */
+    private class TableBatch {
+        private final Map<String, Exception> failed;
+        private final List<String> tableNames = new ArrayList<String>();
+        private BatchRequest batch;
+
+        TableBatch(Map<String, Exception> failed) {
+            this.failed = failed;
+        }
+        /**
+         * @return  tableNameの呼び出しを追加するバッチリクエスト
+         */
+        BatchRequest add(String tableName) {
+            if (tableNames.size() >= BATCH_SIZE) {
+                flush();
+            }
+            if (batch == null) {
+                batch = bigquery.batch();
+                // 全てのAPIに共通のエンドポイントは廃止されたため、BigQueryのエンドポイントに送る
+                batch.setBatchUrl(new GenericUrl(bigquery.getRootUrl() + "batch/bigquery/v2"));
+            }
+            tableNames.add(tableName);
+            return batch;
+        }
+        void flush() {
+            if (batch == null) {
+                return;
+            }
+            try {
+                batch.execute();
+            } catch (IOException e) {
+                for (String tableName : tableNames) {
+                    if (!failed.containsKey(tableName)) {
+                        failed.put(tableName, e);
                     }
-                    break;
                 }
             }
-        } catch (NullPointerException e) {
-            System.err.println("  NullPointerException ignored");
+            batch = null;
+            tableNames.clear();
         }
-        
-        final TableReference tref = insertTable(tableName, loadSchema(schema), renew || !exists);
-        uploadCsvIntoTable(dir, tableName, tref, resumable, useGZipContent, maxBadRecords);
     }
 
-    public TableReference insertTable(String tableName, TableSchema schema, boolean create) throws Exception {
-        TableReference tref = new TableReference()
+    private TableReference tableReference(String tableName) {
+        return new TableReference()
             .setProjectId(projectId)
             .setDatasetId(datasetId)
             .setTableId(tableName);
+    }
+
+    public TableReference insertTable(String tableName, TableSchema schema, boolean create) throws Exception {
+        TableReference tref = tableReference(tableName);
         if (!create) {
             return tref;
         }
@@ -299,13 +671,18 @@ public class CsvUploader {
         final Table table = new Table()
             .setSchema(schema)
             .setTableReference(tref);
-        autoRetry(6, new Callable<Void>() {
+        autoRetry("tables.insert", 6, new Callable<Void>() {
             @Override
             public Void call() throws Exception {
                 bigquery.tables().insert(projectId, datasetId, table).execute();
                 return null;
             }
         });
+        synchronized (this) {
+            if (tableIds != null) {
+                tableIds.add(tableName);
+            }
+        }
         System.err.println(" done");
         return tref;
     }
@@ -316,119 +693,1008 @@ public class CsvUploader {
      * @param tableName テーブル名。Mysqldump2csv.CSV_FILE_NAME_PATTERNに合致するファイルを読み込む。
      * @param tref  テーブル参照
      * @param resumable trueを推奨。1M以下の短いファイルのみfalseにすることができるが、あまりメリットはない。
-     * @param useGZipContent    falseを推奨。trueを指定するとアップロード速度が極度に落ちる。
+     * @param useGZipContent    falseを推奨。trueを指定するとアップロード速度が極度に落ちる。gzip圧縮済みのファイル(.csv.gz)には使わず、圧縮したまま送る。
      * @param maxBadRecords エラーを検知するために0を推奨。
      * @throws Exception    アップロード処理のリトライが10回を超えた場合にthrowされる。
      */
     public void uploadCsvIntoTable(File dir, final String tableName, TableReference tref, final boolean resumable, final boolean useGZipContent, final int maxBadRecords) throws Exception {
-        System.err.println("  upload records into " + tableName);
+        UploadExecutor executor = new UploadExecutor(threads, tableThreads);
+        try {
+            waitAll(submitCsvs(executor, dir, tableName, tref, resumable, useGZipContent, maxBadRecords));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * uploadCsvIntoTable()と同じファイルのアップロードをexecutorに登録する。
+     * @return  ファイル毎のアップロードの結果。アップロードが終わるとロードジョブの結果になる
+     */
+    private List<Future<Future<Job>>> submitCsvs(UploadExecutor executor, File dir, String tableName, TableReference tref, boolean resumable, boolean useGZipContent, int maxBadRecords) {
+        List<FileUpload> uploads = new ArrayList<FileUpload>();
+        for (File csv : listCsvs(dir, tableName)) {
+            uploads.add(new FileUpload(tableName, tref, csv));
+        }
+        if (uploads.isEmpty()) {
+            System.err.println("  upload records into " + tableName);
+            System.err.println("  no record found in " + tableName);
+            return Collections.emptyList();
+        }
+        submitFiles(executor, uploads, null, resumable, useGZipContent, maxBadRecords);
+        List<Future<Future<Job>>> futures = new ArrayList<Future<Future<Job>>>();
+        for (FileUpload upload : uploads) {
+            futures.add(upload.future);
+        }
+        return futures;
+    }
+
+    /**
+     * @return  Mysqldump2csv.CSV_FILE_NAME_PATTERNに合致するファイルを名前順に並べたもの
+     */
+    private static File[] listCsvs(File dir, String tableName) {
+        final Pattern fileNamePattern = Pattern.compile(String.format(Mysqldump2csv.CSV_FILE_NAME_PATTERN, tableName));
+        File[] csvs = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return fileNamePattern.matcher(name).matches();
+            }
+        });
+        Arrays.sort(csvs);
+        return csvs;
+    }
+
+    /**
+     * 同じテーブルのファイルのアップロードをexecutorに登録し、それぞれのfutureに結果を設定する。
+     * @param manifest  ファイル毎の状態を記録する場合に指定する。送信済みのファイルはロードジョブの結果の確認から再開する
+     */
+    private void submitFiles(UploadExecutor executor, List<FileUpload> uploads, final UploadManifest manifest, final boolean resumable, final boolean useGZipContent, final int maxBadRecords) {
+        System.err.println("  upload records into " + uploads.get(0).tableName);
+        long totalSize = 0;
+        for (FileUpload upload : uploads) {
+            totalSize += upload.file.length();
+        }
+        System.err.println(String.format("  total %d files, %,3dkB", uploads.size(), totalSize / 1000));
+
+        final UploadAdaptor ua = new UploadAdaptor(totalSize);
+        for (final FileUpload upload : uploads) {
+            upload.future = executor.submit(upload.tableName, new Callable<Future<Job>>() {
+                @Override
+                public Future<Job> call() throws Exception {
+                    if (manifest != null) {
+                        Future<Job> resumed = resumeJob(upload.file, manifest);
+                        if (resumed != null) {
+                            ua.add(upload.file.length());
+                            return resumed;
+                        }
+                    }
+                    return uploadCsv(upload.file, upload.tref, maxBadRecords, ua, resumable, useGZipContent, manifest);
+                }
+            });
+        }
+    }
+
+    /**
+     * 全てのアップロードとロードジョブの結果を待ち、失敗したものがあれば最初の例外を投げる。途中で失敗しても残りの完了を待つ。
+     */
+    private static void waitAll(List<Future<Future<Job>>> futures) throws Exception {
+        Exception failure = null;
+        for (Future<Future<Job>> future : futures) {
+            try {
+                future.get().get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param avro  Avroファイルをロードする場合はtrue。TIMESTAMPはtimestamp-microsの論理型として読み込ませる。
+     */
+    private Job newLoadJob(TableReference tref, int maxBadRecords, boolean avro) {
         JobConfigurationLoad jobLoad = new JobConfigurationLoad()
             .setDestinationTable(tref)
             .setCreateDisposition("CREATE_NEVER")
             .setWriteDisposition("WRITE_APPEND")
             .setMaxBadRecords(maxBadRecords)
             .setSourceUris(null);
+        if (avro) {
+            jobLoad.setSourceFormat("AVRO");
+            jobLoad.set("useAvroLogicalTypes", true);
+        }
         JobConfiguration jobConfig = new JobConfiguration()
             .setLoad(jobLoad);
         JobReference jobRef = new JobReference()
             .setProjectId(projectId);
-        final Job outputJob = new Job()
+        return new Job()
             .setConfiguration(jobConfig)
             .setJobReference(jobRef);
+    }
 
-        final Pattern fileNamePattern = Pattern.compile(String.format(Mysqldump2csv.CSV_FILE_NAME_PATTERN, tableName));
-        File[] csvs = dir.listFiles(new FilenameFilter() {
+    /**
+     * csvファイル(またはAvroファイル)1つをアップロードする。送信に失敗した場合は10回までリトライする。
+     * ロードジョブは送信後も非同期に実行されるため、ジョブの完了はLoadJobTrackerで待つ。
+     * ジョブIDはこちらで決めて送信前にmanifestに記録する。送信後の応答を受け取れずにリトライした場合は、既に作成されたジョブを使う。
+     * @param manifest  ファイルの状態を記録しない場合はnull
+     * @return  ロードジョブの結果。ジョブが失敗した場合はget()が例外を投げる
+     */
+    private Future<Job> uploadCsv(final File csv, TableReference tref, int maxBadRecords, final UploadAdaptor ua, final boolean resumable, final boolean useGZipContent, UploadManifest manifest) throws Exception {
+        final Job outputJob = newLoadJob(tref, maxBadRecords, csv.getName().endsWith(AVRO_SUFFIX));
+        final String jobId = "csvuploader_" + csv.getName().replaceAll("[^A-Za-z0-9_-]", "_") + "_" + UUID.randomUUID();
+        outputJob.getJobReference().setJobId(jobId);
+        if (manifest != null) {
+            manifest.set(csv, UploadManifest.UPLOADING, jobId);
+        }
+        final UploadMetrics metrics = new UploadMetrics(tref.getTableId());
+        Job job = autoRetry("jobs.insert", 10, new Callable<Job>() {
             @Override
-            public boolean accept(File dir, String name) {
-                return fileNamePattern.matcher(name).matches();
+            public Job call() throws Exception {
+                System.err.println("  target=" + csv);
+                UploadProgress progress = new UploadProgress(ua, resumable ? chunkSizes() : null);
+                InputStreamContent mediaContent = openContent(csv, resumable, useGZipContent);
+                boolean uploaded = false;
+                try {
+                    Insert insert = bigquery.jobs().insert(projectId, outputJob, mediaContent);
+                    insert.getMediaHttpUploader()
+                        .setDirectUploadEnabled(!resumable)
+                        .setDisableGZipContent(!useGZipContent || precompressed(csv))
+                        .setChunkSize(chunkSizes().chunkSize())
+                        .setProgressListener(progress);
+                    long start = System.nanoTime();
+                    Job job;
+                    try {
+                        job = insert.execute();
+                    } catch (GoogleJsonResponseException e) {
+                        if (e.getStatusCode() != 409) {
+                            throw e;
+                        }
+                        System.err.println("  job " + jobId + " already exists");
+                        job = bigquery.jobs().get(projectId, jobId).execute();
+                    }
+                    double throughput = metrics.uploaded(csv.length(), start, progress.completed);
+                    progress.done(csv.length());
+                    uploaded = true;
+                    System.err.println(String.format("  uploaded %s (%,3dkB/sec%s), job %s", csv.getName(), (long) throughput / 1000,
+                        resumable ? String.format(", chunk %,3dkB", insert.getMediaHttpUploader().getChunkSize() / 1024) : "", job.getJobReference().getJobId()));
+                    return job;
+                } finally {
+                    if (!uploaded) {
+                        progress.reset();
+                    }
+                    mediaContent.getInputStream().close();
+                }
             }
         });
-        if (csvs.length == 0) {
-            System.err.println("  no record found in " + tableName);
+        if (manifest != null) {
+            manifest.set(csv, UploadManifest.UPLOADED, jobId);
         }
-        Arrays.sort(csvs);
-        long totalSize = 0;
-        for (File csv : csvs) {
-            totalSize += csv.length();
+        return jobTracker().track(job, csv.getName());
+    }
+
+    /**
+     * 前回送信したファイルのロードジョブをmanifestから探して完了を待つ。失敗したファイルもジョブが記録されていれば確認する。
+     * ジョブの状態を確認できない場合は再送せずに例外を投げる。
+     * @return  ジョブが記録されていないか、ジョブが作成されていないか、ジョブがエラーで完了していた場合はnull
+     */
+    private Future<Job> resumeJob(File csv, UploadManifest manifest) throws Exception {
+        String state = manifest.state(csv);
+        final String jobId = manifest.jobId(csv);
+        if (jobId == null || !(UploadManifest.UPLOADING.equals(state) || UploadManifest.UPLOADED.equals(state) || UploadManifest.FAILED.equals(state))) {
+            return null;
         }
-        System.err.println(String.format("  total %d files, %,3dkB", csvs.length, totalSize / 1000));
+        Job job = autoRetry("jobs.get", 6, new Callable<Job>() {
+            @Override
+            public Job call() throws Exception {
+                try {
+                    return bigquery.jobs().get(projectId, jobId).execute();
+                } catch (GoogleJsonResponseException e) {
+                    if (e.getStatusCode() == 404) {
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        });
+        if (job == null) {
+            System.err.println("  job " + jobId + " not found, uploading " + csv.getName() + " again");
+            return null;
+        }
+        JobStatus status = job.getStatus();
+        if (status != null && "DONE".equals(status.getState()) && status.getErrorResult() != null) {
+            System.err.println("  job " + jobId + " failed: " + status.getErrorResult() + ", uploading " + csv.getName() + " again");
+            return null;
+        }
+        System.err.println("  resume job " + jobId + " of " + csv.getName());
+        manifest.set(csv, UploadManifest.UPLOADED, jobId);
+        return jobTracker().track(job, csv.getName());
+    }
 
-        final UploadAdaptor ua = new UploadAdaptor(totalSize);
-        for (final File csv : csvs) {
-            autoRetry(10, new Callable<Void>() {
+    private synchronized ChunkSizeController chunkSizes() {
+        if (chunkSizes == null) {
+            chunkSizes = new ChunkSizeController(minChunkSize, maxChunkSize, MediaHttpUploader.DEFAULT_CHUNK_SIZE);
+        }
+        return chunkSizes;
+    }
+
+    private synchronized LoadJobTracker jobTracker() {
+        // 監視スレッドが例外で止まった場合は新しく作り直す
+        if (jobTracker == null || jobTracker.isStopped()) {
+            jobTracker = new LoadJobTracker(bigquery, projectId);
+            jobTracker.start();
+        }
+        return jobTracker;
+    }
+
+    /** 圧縮したまま送るgzipファイルのContent-Type */
+    static final String GZIP_CONTENT_TYPE = "application/gzip";
+
+    /**
+     * アップロードするファイルの内容を開く。gzipファイルは展開も再圧縮もせずにそのまま送り、BigQuery側で展開させる。
+     * BigQueryはzipを読めないため、zipファイルは展開しながら送る。長さはzipの中央ディレクトリに記録された展開後の大きさとする。
+     */
+    static InputStreamContent openContent(File csv, boolean resumable, boolean useGZipContent) throws IOException {
+        // GCPライブラリの制限でresumableが有効な場合にコンテントの長さをセットするとgzipが無効になる。
+        boolean setLength = !resumable || !useGZipContent;
+        if (csv.getName().endsWith(Mysqldump2csv.ZIP_SUFFIX)) {
+            final ZipFile zip = new ZipFile(csv);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            if (!entries.hasMoreElements()) {
+                zip.close();
+                return new InputStreamContent("application/octet-stream", new ByteArrayInputStream(new byte[0])).setLength(0);
+            }
+            ZipEntry entry = entries.nextElement();
+            InputStream in = new FilterInputStream(new BufferedInputStream(zip.getInputStream(entry), 0x10000)) {
                 @Override
-                public Void call() throws Exception {
-                    System.err.print(String.format("  target=" + csv + " ."));
-                    Matcher matcher = fileNamePattern.matcher(csv.getName());
-                    if (!matcher.matches()) {
-                        throw new IllegalStateException();
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            };
+            InputStreamContent mediaContent = new InputStreamContent("application/octet-stream", in);
+            if (setLength && entry.getSize() >= 0) {
+                mediaContent.setLength(entry.getSize());
+            }
+            return mediaContent;
+        }
+        boolean gzip = precompressed(csv);
+        InputStreamContent mediaContent = new InputStreamContent(gzip ? GZIP_CONTENT_TYPE : "application/octet-stream", new BufferedInputStream(new FileInputStream(csv), 0x10000));
+        // gzipファイルはHTTPのgzipを使わないため常に長さをセットできる
+        if (gzip || setLength) {
+            mediaContent.setLength(csv.length());
+        }
+        return mediaContent;
+    }
+
+    /**
+     * @return  圧縮したまま送るファイル(gzip)ならtrue。HTTPのgzipで再圧縮しない
+     */
+    static boolean precompressed(File csv) {
+        return csv.getName().endsWith(Mysqldump2csv.GZIP_SUFFIX);
+    }
+
+    /**
+     * Mysqldump2csvによる変換と並行して、書き出しが完了したcsvファイルから順にアップロードする。アップロードしたcsvファイルは削除する。
+     * 未アップロードのファイルがqueueSizeに達した場合は変換側を待たせる。
+     * @param dumpArgs  Mysqldump2csv.main()に渡す引数
+     * @param queueSize アップロード待ちのファイル数の上限
+     */
+    public void uploadPipelined(String[] dumpArgs, int queueSize, final boolean resumable, final boolean useGZipContent, final int maxBadRecords) throws Exception {
+        System.err.println("pipelined upload into " + datasetId + ". options: queueSize=" + queueSize + ", resumable=" + resumable + ", useGZipContent=" + useGZipContent + ", maxBadRecords=" + maxBadRecords);
+        ChunkPipeline pipeline = new ChunkPipeline(dumpArgs, queueSize);
+        pipeline.start();
+        Map<String, File> schemas = new LinkedHashMap<String, File>();
+        Map<String, TableReference> trefs = new HashMap<String, TableReference>();
+        UploadExecutor executor = new UploadExecutor(threads, tableThreads);
+        Queue<Future<Future<Job>>> uploading = new LinkedList<Future<Future<Job>>>();
+        Queue<File> uploadingFiles = new LinkedList<File>();
+        try {
+            Chunk chunk;
+            while ((chunk = pipeline.take()) != null) {
+                if (chunk.index < 0) {
+                    schemas.put(chunk.tableName, chunk.file);
+                    continue;
+                }
+                TableReference tref = trefs.get(chunk.tableName);
+                if (tref == null) {
+                    File schema = schemas.get(chunk.tableName);
+                    if (schema == null) {
+                        throw new IllegalStateException("schema not found: " + chunk.tableName);
+                    }
+                    tref = prepareTable(chunk.tableName, schema, chunk.index == 0 && !Mysqldump2csv.incremental(schema.getParentFile(), chunk.tableName));
+                    System.err.println("  upload records into " + chunk.tableName);
+                    trefs.put(chunk.tableName, tref);
+                }
+                final File csv = chunk.file;
+                final TableReference target = tref;
+                uploading.add(executor.submit(chunk.tableName, new Callable<Future<Job>>() {
+                    @Override
+                    public Future<Job> call() throws Exception {
+                        return uploadCsv(csv, target, maxBadRecords, new UploadAdaptor(csv.length()), resumable, useGZipContent, null);
+                    }
+                }));
+                uploadingFiles.add(csv);
+                // 変換側が先に進みすぎないように、アップロード中とロード中のファイルがthreads * 4を超えたら古いものから完了を待つ
+                while (uploading.size() > threads * 4) {
+                    waitLoaded(uploading.poll(), uploadingFiles.poll());
+                }
+            }
+            while (!uploading.isEmpty()) {
+                waitLoaded(uploading.poll(), uploadingFiles.poll());
+            }
+        } finally {
+            executor.shutdown();
+            pipeline.finish();
+        }
+        // レコードのないテーブルもuploadAll()と同様に作成しておく
+        Map<String, File> empty = new LinkedHashMap<String, File>(schemas);
+        empty.keySet().removeAll(trefs.keySet());
+        if (!empty.isEmpty()) {
+            Map<String, Exception> failed = prepareTables(empty, Collections.<String>emptySet());
+            if (!failed.isEmpty()) {
+                throw failed.values().iterator().next();
+            }
+        }
+        for (Map.Entry<String, File> e : schemas.entrySet()) {
+            Mysqldump2csv.commitWatermark(e.getValue().getParentFile(), e.getKey());
+        }
+        System.err.println("pipelined upload completed");
+    }
+
+    /**
+     * ロードジョブの完了を待ってcsvファイルを削除する。ジョブが失敗した場合は削除せずに例外を投げる。
+     */
+    private static void waitLoaded(Future<Future<Job>> upload, File csv) throws Exception {
+        waitAll(Collections.singletonList(upload));
+        if (!csv.delete()) {
+            System.err.println("  failed to delete " + csv);
+        }
+    }
+
+    /**
+     * uploadAll()のファイル1つのアップロード。
+     */
+    private static class FileUpload {
+        final String tableName;
+        final TableReference tref;
+        final File file;
+        Future<Future<Job>> future;
+        FileUpload(String tableName, TableReference tref, File file) {
+            this.tableName = tableName;
+            this.tref = tref;
+            this.file = file;
+        }
+    }
+
+    /**
+     * uploadAll()のファイル毎の状態。MANIFEST_FILE_NAMEのファイルにProperties形式で保存する。
+     * キーはファイル名、値は"状態,長さ,更新時刻[,ジョブID]"。ファイルの長さか更新時刻が記録と異なる場合(変換し直した場合)は記録を無視する。
+     * schemaファイルにはテーブルを準備したこと(PREPARED)を記録する。
+     */
+    static class UploadManifest {
+        static final String PREPARED = "prepared";
+        /** ジョブIDを決めて送信を開始した */
+        static final String UPLOADING = "uploading";
+        /** 送信を終えてロードジョブが作成された */
+        static final String UPLOADED = "uploaded";
+        /** ロードジョブが成功した */
+        static final String DONE = "done";
+        /** 失敗した。ジョブIDが記録されていれば再送する前にそのジョブの状態を確認する */
+        static final String FAILED = "failed";
+        private final File file;
+        private final Properties entries = new Properties();
+
+        private UploadManifest(File file) {
+            this.file = file;
+        }
+
+        static UploadManifest load(File file) throws IOException {
+            UploadManifest manifest = new UploadManifest(file);
+            if (file.exists()) {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    manifest.entries.load(in);
+                } finally {
+                    in.close();
+                }
+                System.err.println("resuming upload: " + manifest.entries.size() + " files recorded in " + file);
+            }
+            return manifest;
+        }
+
+        /**
+         * @return  記録がないか、ファイルが記録した後に変わっている場合はnull
+         */
+        synchronized String state(File f) {
+            String[] entry = entry(f);
+            return entry != null ? entry[0] : null;
+        }
+
+        synchronized String jobId(File f) {
+            String[] entry = entry(f);
+            return entry != null && entry.length > 3 ? entry[3] : null;
+        }
+
+        private String[] entry(File f) {
+            String value = entries.getProperty(f.getName());
+            if (value == null) {
+                return null;
+            }
+            String[] entry = value.split(",");
+            if (entry.length < 3 || !entry[1].equals(String.valueOf(f.length())) || !entry[2].equals(String.valueOf(f.lastModified()))) {
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+         * 状態を記録し、一時ファイルに書き込んでから置き換える。
+         * @param jobId ジョブIDがない場合はnull
+         */
+        synchronized void set(File f, String state, String jobId) throws IOException {
+            entries.setProperty(f.getName(), state + "," + f.length() + "," + f.lastModified() + (jobId != null ? "," + jobId : ""));
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                entries.store(out, null);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename: " + tmp);
+            }
+        }
+
+        synchronized void delete() {
+            if (file.exists() && !file.delete()) {
+                System.err.println("failed to delete " + file);
+            }
+        }
+    }
+
+    private static class Chunk {
+        final String tableName;
+        final int index;
+        final File file;
+        Chunk(String tableName, int index, File file) {
+            this.tableName = tableName;
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /**
+     * 別スレッドでMysqldump2csvを実行し、閉じられたファイルを有界キューに積む。
+     */
+    private static class ChunkPipeline extends Thread implements Mysqldump2csv.ChunkListener {
+        private static final Chunk END = new Chunk(null, -1, null);
+        private final String[] dumpArgs;
+        private final BlockingQueue<Chunk> queue;
+        private volatile boolean aborted;
+        private volatile Throwable failure;
+
+        ChunkPipeline(String[] dumpArgs, int queueSize) {
+            super("CsvUploader-pipeline");
+            this.dumpArgs = dumpArgs;
+            queue = new ArrayBlockingQueue<Chunk>(queueSize);
+        }
+        @Override
+        public void run() {
+            try {
+                Mysqldump2csv.run(dumpArgs, this);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                try {
+                    put(END);
+                } catch (IOException e) {
+                }
+            }
+        }
+        @Override
+        public void schemaSaved(String tableName, File schema) throws IOException {
+            put(new Chunk(tableName, -1, schema));
+        }
+        @Override
+        public void chunkClosed(String tableName, int index, File csv) throws IOException {
+            put(new Chunk(tableName, index, csv));
+        }
+        private void put(Chunk chunk) throws IOException {
+            try {
+                while (!queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+                    if (aborted) {
+                        throw new IOException("pipelined upload aborted");
                     }
-                    String zip = matcher.group(2);
-                    InputStream in;
-                    if (zip == null || zip.length() == 0) {
-                        in = new BufferedInputStream(new FileInputStream(csv));
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        /**
+         * @return  変換が終了した場合はnull
+         */
+        Chunk take() throws Exception {
+            Chunk chunk = queue.take();
+            if (chunk != END) {
+                return chunk;
+            }
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            } else if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+            return null;
+        }
+        /**
+         * アップロード側が途中で失敗した場合も変換スレッドを止めて終了を待つ。
+         */
+        void finish() throws InterruptedException {
+            aborted = true;
+            queue.clear();
+            join();
+        }
+    }
+
+    /**
+     * テーブル毎のアップロードの計測値。
+     */
+    private static class UploadMetrics {
+        final Metrics.Counter bytes, files;
+        final Metrics.Histogram uploadSeconds, jobSeconds;
+        final Metrics.Gauge throughput;
+        UploadMetrics(String tableName) {
+            bytes = Metrics.counter("csvuploader_upload_bytes_total", "Bytes of uploaded files per table.", "table", tableName);
+            files = Metrics.counter("csvuploader_upload_files_total", "Uploaded files per table.", "table", tableName);
+            uploadSeconds = Metrics.histogram("csvuploader_upload_seconds", "Time to send one file.", Metrics.SECONDS_BUCKETS, "table", tableName);
+            jobSeconds = Metrics.histogram("csvuploader_job_seconds", "Time from the end of sending a file to the response of the load job.", Metrics.SECONDS_BUCKETS, "table", tableName);
+            throughput = Metrics.gauge("csvuploader_upload_bytes_per_second", "Throughput of the last uploaded file.", "table", tableName);
+        }
+        /**
+         * @param start     送信を開始したSystem.nanoTime()
+         * @param completed 送信が完了したSystem.nanoTime()。進捗が通知されなかった場合は0
+         * @return  送信のスループット(バイト/秒)
+         */
+        double uploaded(long length, long start, long completed) {
+            long end = System.nanoTime();
+            if (completed < start) {
+                completed = end;
+            }
+            bytes.add(length);
+            files.inc();
+            uploadSeconds.observeNanos(completed - start);
+            jobSeconds.observeNanos(end - completed);
+            double bytesPerSecond = length * 1e9 / Math.max(completed - start, 1);
+            throughput.set(bytesPerSecond);
+            return bytesPerSecond;
+        }
+    }
+
+    /**
+     * 投入したロードジョブの完了をjobs().getで確認する。ロードジョブは送信後も非同期に実行され、読み込みのエラーは完了時に分かる。
+     * 1つのスレッドが全てのジョブの確認時刻を管理し、確認時刻になったジョブを最大POLL_THREADS個並行して問い合わせる。
+     * 確認の間隔はジョブ毎に最初はMIN_INTERVALとし、実行中であれば1.5倍ずつMAX_INTERVALまで延ばす。
+     * スレッドが止まった後に渡されたジョブは確認できないので、止まった原因で即座に失敗させる。
+     */
+    private static class LoadJobTracker extends Thread {
+        private static final int POLL_THREADS = 8;
+        private static final long MIN_INTERVAL = 1000, MAX_INTERVAL = 30000;
+        /** 問い合わせ自体が続けて失敗した場合に確認を諦める回数。ジョブの状態は不明のまま */
+        private static final int MAX_POLL_ERRORS = 10;
+        private final Bigquery bigquery;
+        private final String projectId;
+        private final ExecutorService pollers = Executors.newFixedThreadPool(POLL_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // 監視スレッドと同様に終了を妨げないようにする
+                Thread t = new Thread(r, "CsvUploader-job-poller");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        private final List<TrackedJob> jobs = new ArrayList<TrackedJob>();
+        /** スレッドが止まった原因。止まっていなければnull */
+        private Exception stopped;
+        private final Metrics.Gauge running = Metrics.gauge("csvuploader_load_jobs_running", "Load jobs submitted and not yet done.");
+        private final Metrics.Histogram jobSeconds = Metrics.histogram("csvuploader_load_job_seconds", "Time from the submission of a load job to its completion.", Metrics.SECONDS_BUCKETS);
+
+        LoadJobTracker(Bigquery bigquery, String projectId) {
+            super("CsvUploader-job-tracker");
+            setDaemon(true);
+            this.bigquery = bigquery;
+            this.projectId = projectId;
+        }
+
+        /**
+         * @param description   ログに出力する名前
+         */
+        Future<Job> track(Job job, String description) {
+            TrackedJob tracked = new TrackedJob(job.getJobReference().getJobId(), description);
+            if (!tracked.update(job)) {
+                synchronized (this) {
+                    if (stopped != null) {
+                        tracked.fail(stopped);
                     } else {
-                        in = new ZipInputStream(new FileInputStream(csv));
+                        jobs.add(tracked);
+                        running.set(jobs.size());
+                        notifyAll();
                     }
-                    try {
-                        InputStreamContent mediaContent = new InputStreamContent("application/octet-stream", in);
-                        // GCPライブラリの制限でresumableが有効な場合にコンテントの長さをセットするとgzipが無効になる。
-                        if (!resumable || !useGZipContent) {
-                            mediaContent.setLength(csv.length());
+                }
+            }
+            return tracked;
+        }
+
+        synchronized boolean isStopped() {
+            return stopped != null;
+        }
+
+        @Override
+        public void run() {
+            Exception cause = null;
+            try {
+                while (true) {
+                    List<TrackedJob> due = new ArrayList<TrackedJob>();
+                    synchronized (this) {
+                        while (due.isEmpty()) {
+                            long now = System.currentTimeMillis(), next = Long.MAX_VALUE;
+                            for (TrackedJob j : jobs) {
+                                if (j.nextPoll <= now) {
+                                    due.add(j);
+                                } else {
+                                    next = Math.min(next, j.nextPoll);
+                                }
+                            }
+                            if (due.isEmpty()) {
+                                wait(next == Long.MAX_VALUE ? 0 : next - now);
+                            }
                         }
-                        Insert insert = bigquery.jobs().insert(projectId, outputJob, mediaContent);
-                        insert.getMediaHttpUploader()
-                            .setDirectUploadEnabled(!resumable)
-                            .setDisableGZipContent(!useGZipContent)
-                            .setProgressListener(ua);
-                        JobStatus status = insert.execute().getStatus();
-                        if (status.getErrors() != null && status.getErrors().size() > 0) {
-                            
-                            throw new IllegalStateException("job has error(s) " + status.getErrors());
+                    }
+                    List<Future<?>> polls = new ArrayList<Future<?>>();
+                    for (final TrackedJob j : due) {
+                        polls.add(pollers.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                poll(j);
+                            }
+                        }));
+                    }
+                    for (Future<?> poll : polls) {
+                        poll.get();
+                    }
+                }
+            } catch (Exception e) {
+                cause = e;
+            } finally {
+                synchronized (this) {
+                    stopped = cause != null ? cause : new IllegalStateException("load job tracker stopped");
+                    for (TrackedJob j : jobs) {
+                        j.fail(stopped);
+                    }
+                    jobs.clear();
+                    running.set(0);
+                }
+                pollers.shutdownNow();
+            }
+        }
+
+        private void poll(TrackedJob j) {
+            boolean done;
+            try {
+                done = j.update(bigquery.jobs().get(projectId, j.jobId).execute());
+                j.pollErrors = 0;
+            } catch (IOException e) {
+                // 問い合わせの失敗はジョブの失敗ではないので、上限までは間隔を延ばして問い合わせ直す
+                System.err.println("  failed to get job " + j.jobId + ": " + e);
+                done = ++j.pollErrors >= MAX_POLL_ERRORS;
+                if (done) {
+                    // ジョブ自体は成功している可能性があるので、呼び出し側は再送する前にジョブの状態を確認する
+                    j.fail(new IOException("gave up getting the state of job " + j.jobId, e));
+                }
+            }
+            synchronized (this) {
+                if (done) {
+                    jobs.remove(j);
+                    running.set(jobs.size());
+                } else {
+                    j.interval = Math.min((long) (j.interval * 1.5), MAX_INTERVAL);
+                    j.nextPoll = System.currentTimeMillis() + j.interval;
+                }
+            }
+        }
+
+        /**
+         * 完了したロードジョブを結果とするFuture。
+         */
+        private class TrackedJob extends FutureTask<Job> {
+            final String jobId;
+            final String description;
+            final long submitted = System.nanoTime();
+            long interval = MIN_INTERVAL;
+            long nextPoll = System.currentTimeMillis() + MIN_INTERVAL;
+            int pollErrors;
+
+            TrackedJob(String jobId, String description) {
+                super(new Callable<Job>() {
+                    @Override
+                    public Job call() {
+                        throw new IllegalStateException("not runnable");
+                    }
+                });
+                this.jobId = jobId;
+                this.description = description;
+            }
+            /**
+             * @return  ジョブが完了した場合はtrue
+             */
+            boolean update(Job job) {
+                JobStatus status = job.getStatus();
+                if (status == null || !"DONE".equals(status.getState())) {
+                    return false;
+                }
+                jobSeconds.observeNanos(System.nanoTime() - submitted);
+                if (status.getErrorResult() != null) {
+                    Metrics.counter("csvuploader_load_jobs_total", "Load jobs by result.", "result", "failed").inc();
+                    System.err.println("  load failed " + description + ": " + status.getErrorResult() + (status.getErrors() != null ? " " + status.getErrors() : ""));
+                    fail(new IllegalStateException("job " + jobId + " has error(s) " + (status.getErrors() != null ? status.getErrors() : status.getErrorResult())));
+                } else {
+                    Metrics.counter("csvuploader_load_jobs_total", "Load jobs by result.", "result", "done").inc();
+                    if (status.getErrors() != null && status.getErrors().size() > 0) {
+                        System.err.println("  loaded " + description + " with error(s) within maxBadRecords: " + status.getErrors());
+                    } else {
+                        System.err.println("  loaded " + description);
+                    }
+                    set(job);
+                }
+                return true;
+            }
+            void fail(Throwable e) {
+                setException(e);
+            }
+        }
+    }
+
+    /**
+     * アップロードを最大threads個並行して実行する。同じテーブルのアップロードは最大tableThreads個までとし、
+     * 上限に達したテーブルのアップロードはそのテーブルのアップロードが終わるまで待たせて、その間は他のテーブルのアップロードを実行する。
+     */
+    private static class UploadExecutor {
+        private final ExecutorService workers;
+        private final int tableThreads;
+        private final Map<String, Integer> running = new HashMap<String, Integer>();
+        private final Map<String, Queue<FutureTask<?>>> waiting = new HashMap<String, Queue<FutureTask<?>>>();
+        private final AtomicInteger inProgress = new AtomicInteger();
+        private final Metrics.Gauge inProgressGauge = Metrics.gauge("csvuploader_uploads_in_progress", "Files being uploaded at once.");
+
+        UploadExecutor(int threads, int tableThreads) {
+            workers = Executors.newFixedThreadPool(threads);
+            this.tableThreads = tableThreads;
+        }
+        synchronized <T> Future<T> submit(String tableName, Callable<T> upload) {
+            FutureTask<T> task = new FutureTask<T>(upload);
+            Integer n = running.get(tableName);
+            if (n == null || n < tableThreads) {
+                running.put(tableName, n == null ? 1 : n + 1);
+                execute(tableName, task);
+            } else {
+                Queue<FutureTask<?>> queue = waiting.get(tableName);
+                if (queue == null) {
+                    queue = new LinkedList<FutureTask<?>>();
+                    waiting.put(tableName, queue);
+                }
+                queue.add(task);
+            }
+            return task;
+        }
+        private void execute(final String tableName, final FutureTask<?> task) {
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        inProgressGauge.set(inProgress.incrementAndGet());
+                        try {
+                            task.run();
+                        } finally {
+                            inProgressGauge.set(inProgress.decrementAndGet());
+                            finished(tableName);
                         }
-                        ua.uploadedSize += csv.length();
-                        return null;
-                    } finally {
-                        in.close();
                     }
+                });
+            } catch (RejectedExecutionException e) {
+                // 終了後は待っている側が止まらないように取り消す
+                task.cancel(false);
+            }
+        }
+        /**
+         * テーブルのアップロードが1つ終わったら、同じテーブルで待っているものを開始する。
+         */
+        private synchronized void finished(String tableName) {
+            Queue<FutureTask<?>> queue = waiting.get(tableName);
+            FutureTask<?> next = queue != null ? queue.poll() : null;
+            if (next != null) {
+                execute(tableName, next);
+            } else {
+                int n = running.get(tableName) - 1;
+                if (n > 0) {
+                    running.put(tableName, n);
+                } else {
+                    running.remove(tableName);
+                    waiting.remove(tableName);
                 }
-            });
+            }
+        }
+        synchronized void shutdown() {
+            workers.shutdownNow();
+            for (Queue<FutureTask<?>> queue : waiting.values()) {
+                for (FutureTask<?> task : queue) {
+                    task.cancel(false);
+                }
+            }
+            waiting.clear();
         }
     }
-    
-    private static class UploadAdaptor implements MediaHttpUploaderProgressListener {
+
+    /**
+     * テーブル(またはパイプラインのファイル)毎の送信の進捗。複数のファイルを並行して送信するため、ファイル毎の進捗(UploadProgress)から差分を加算する。
+     */
+    private static class UploadAdaptor {
         final long totalSize;
-        long uploadedSize, prev, prevSize;
+        /** 送信を終えたファイルの大きさと送信中のファイルの送信済みバイト数の合計 */
+        final AtomicLong uploadedSize = new AtomicLong();
+        private final AtomicLong prev = new AtomicLong(System.currentTimeMillis());
+        private final AtomicLong prevSize = new AtomicLong();
         UploadAdaptor(long totalSize) {
             this.totalSize = totalSize;
         }
+        /**
+         * 送信済みのバイト数を加算し、前回から1分以上経っていれば進捗を表示する。
+         */
+        void add(long delta) {
+            long size = uploadedSize.addAndGet(delta);
+            long now = System.currentTimeMillis();
+            long p = prev.get();
+            if (now - p >= 60000 && prev.compareAndSet(p, now)) {
+                long ps = prevSize.getAndSet(size);
+                System.err.println(String.format("    %,3dkB, %.2f%% (%,3dkB/sec), " + new Date(now), size / 1000, size * 100f / totalSize, (size - ps) / (now - p)));
+            }
+        }
+    }
+
+    /**
+     * resumableアップロードのチャンクの大きさを、チャンク毎のスループットに応じてminからmaxの範囲でMediaHttpUploader.MINIMUM_CHUNK_SIZE(256kB)の倍数で調整する。
+     * 大きさ毎にスループットの移動平均を保持し、計測済みの1つ小さい大きさの方が速ければ戻し、1つ大きい大きさが今より速いか未計測(倍の大きさを試す)であれば大きくする。
+     * 1つのチャンクの送信がMAX_CHUNK_NANOSを超えた場合は、失敗した時に送り直す量を抑えるために半分にし、以降はその大きさを上限とする。
+     * 並行するアップロードは同じ回線を使うため、全てのアップロードで1つのインスタンスを共有する。
+     */
+    static class ChunkSizeController {
+        private static final int UNIT = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+        private static final long MAX_CHUNK_NANOS = 30000000000L;
+        /** 移動平均で新しい計測値に掛ける重み */
+        private static final double SMOOTHING = 0.3;
+        private final int min;
+        private int max;
+        private int chunkSize;
+        private final TreeMap<Integer, Double> throughputs = new TreeMap<Integer, Double>();
+        private final Metrics.Gauge chunkBytes = Metrics.gauge("csvuploader_upload_chunk_bytes", "Chunk size of resumable uploads.");
+
+        ChunkSizeController(int min, int max, int initial) {
+            this.min = round(min);
+            this.max = Math.max(round(max), this.min);
+            chunkSize = Math.min(Math.max(round(initial), this.min), this.max);
+            chunkBytes.set(chunkSize);
+        }
+        /**
+         * @return  UNITの倍数に切り下げた大きさ。UNIT未満はUNIT
+         */
+        static int round(long size) {
+            return (int) Math.max(UNIT, Math.min(size, Integer.MAX_VALUE) / UNIT * UNIT);
+        }
+        synchronized int chunkSize() {
+            return chunkSize;
+        }
+        /**
+         * チャンク1つの送信にかかった時間を記録する。
+         * @param size  送信時のチャンクの大きさ
+         * @param bytes 送信したバイト数。sizeに満たないチャンク(ファイルの最後など)は計測に使わない
+         * @param nanos 送信にかかった時間
+         * @return  次のチャンクの大きさ
+         */
+        synchronized int measured(int size, long bytes, long nanos) {
+            if (bytes < size || nanos <= 0) {
+                return chunkSize;
+            }
+            double throughput = bytes * 1e9 / nanos;
+            Double prev = throughputs.get(size);
+            double average = prev == null ? throughput : prev * (1 - SMOOTHING) + throughput * SMOOTHING;
+            throughputs.put(size, average);
+            if (size != chunkSize) {
+                // 他のアップロードが既に変更している
+                return chunkSize;
+            }
+            if (nanos > MAX_CHUNK_NANOS && size > min) {
+                max = Math.max(round(size / 2), min);
+            }
+            Integer lower = throughputs.lowerKey(size), higher = throughputs.higherKey(size);
+            int up = higher != null ? higher : (int) Math.min(size * 2L, max);
+            Double upThroughput = throughputs.get(up);
+            int next = size;
+            if (size > max) {
+                next = max;
+            } else if (lower != null && throughputs.get(lower) > average) {
+                next = lower;
+            } else if (up > size && up <= max && (upThroughput == null || upThroughput > average)) {
+                next = up;
+            }
+            if (next != size) {
+                System.err.println(String.format("  chunk size %,3dkB -> %,3dkB (%,3dkB/sec at %,3dkB)", size / 1024, next / 1024, (long) average / 1000, size / 1024));
+                chunkSize = next;
+                chunkBytes.set(next);
+            }
+            return next;
+        }
+    }
+
+    /**
+     * ファイル1つの送信の進捗をMediaHttpUploaderから受け取ってUploadAdaptorに加算する。送信し直す場合は送信済みの分を取り消す。
+     * chunkSizesを指定した場合はチャンク毎の送信時間を計測し、次のチャンクの大きさを変える。
+     */
+    private static class UploadProgress implements MediaHttpUploaderProgressListener {
+        private final UploadAdaptor ua;
+        private final ChunkSizeController chunkSizes;
+        private long sent;
+        /** 送信中のチャンクを送り始めたSystem.nanoTime() */
+        private long chunkStart;
+        /** 送信が完了したSystem.nanoTime() */
+        volatile long completed;
+        /**
+         * @param chunkSizes    チャンクの大きさを調整しない場合はnull
+         */
+        UploadProgress(UploadAdaptor ua, ChunkSizeController chunkSizes) {
+            this.ua = ua;
+            this.chunkSizes = chunkSizes;
+        }
         public void progressChanged(MediaHttpUploader uploader) throws IOException {
             switch (uploader.getUploadState()) {
             case INITIATION_STARTED:
-                System.err.print(".");
-                prev = System.currentTimeMillis();
-                prevSize = 0;
+                reset();
+                completed = 0;
                 break;
             case INITIATION_COMPLETE:
-                System.err.print(".");
+                chunkStart = System.nanoTime();
                 break;
             case MEDIA_IN_PROGRESS:
-                long now = System.currentTimeMillis();
-                if (now - prev >= 60000) {
-                    long size = uploader.getNumBytesUploaded();
-                    System.err.println();
-                    System.err.print(String.format("    %,3dkB, %.2f%% (%,3dkB/sec), " + new Date(now) + " .", (uploadedSize + size) / 1000, (uploadedSize + size) * 100f / totalSize, (size - prevSize) / (now - prev)));
-                    prev = now;
-                    prevSize = size;
-                } else {
-                    System.err.print(".");
+                long size = uploader.getNumBytesUploaded();
+                long now = System.nanoTime();
+                // 長さが分からない場合、MediaHttpUploaderは最初のチャンクの大きさのバッファを使い続けるため変更できない
+                if (chunkSizes != null && uploader.getMediaContent().getLength() >= 0) {
+                    uploader.setChunkSize(chunkSizes.measured(uploader.getChunkSize(), size - sent, now - chunkStart));
                 }
+                chunkStart = now;
+                ua.add(size - sent);
+                sent = size;
                 break;
             case MEDIA_COMPLETE:
-                System.err.println();
+                completed = System.nanoTime();
                 break;
             case NOT_STARTED:
                 throw new IllegalStateException("upload not started");
             }
-        }};
+        }
+        /**
+         * 送信を終えたファイルの大きさで進捗を確定する。
+         */
+        void done(long length) {
+            ua.add(length - sent);
+            sent = length;
+        }
+        void reset() {
+            ua.add(-sent);
+            sent = 0;
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * 入力ファイルを拡張子に応じて展開しながら読み込む。Mysqldump2csvとJson2csvで共通に使用する。
+ * .gz, .zst, .zipは展開を先読みスレッドで行い、.zipは全てのエントリを順に連結して読み込む。
+ */
+public class InputFiles {
+
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String ZSTD_SUFFIX = ".zst";
+    public static final String ZIP_SUFFIX = ".zip";
+
+    private InputFiles() {
+    }
+
+    public static boolean isCompressed(String fileName) {
+        return fileName.endsWith(GZIP_SUFFIX) || fileName.endsWith(ZSTD_SUFFIX) || fileName.endsWith(ZIP_SUFFIX);
+    }
+
+    /**
+     * @return  圧縮形式の拡張子を除いたファイル名
+     */
+    public static String baseName(String fileName) {
+        if (isCompressed(fileName)) {
+            return fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        return fileName;
+    }
+
+    /**
+     * @return  展開後のバイト列を返すストリーム。圧縮されていないファイルはFileInputStreamのまま返す。
+     */
+    public static InputStream open(String fileName) throws IOException {
+        FileInputStream file = new FileInputStream(fileName);
+        if (!isCompressed(fileName)) {
+            return file;
+        }
+        InputStream in;
+        try {
+            InputStream buffered = new BufferedInputStream(file, 0x10000);
+            if (fileName.endsWith(GZIP_SUFFIX)) {
+                in = new GZIPInputStream(buffered, 0x10000);
+            } else if (fileName.endsWith(ZSTD_SUFFIX)) {
+                in = new ZstdInputStream(buffered);
+            } else {
+                in = new ZipEntriesInputStream(new ZipInputStream(buffered), fileName);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new ReadAheadInputStream(in, fileName);
+    }
+
+    /**
+     * 入力の先頭からoffsetバイトを読み飛ばす。
+     */
+    public static void skipFully(InputStream in, long offset, String fileName) throws IOException {
+        byte[] buffer = null;
+        for (long skipped = 0; skipped < offset; ) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                // skip()が進まない実装のために読み込んで捨てる
+                if (buffer == null) {
+                    buffer = new byte[0x10000];
+                }
+                n = in.read(buffer, 0, (int) Math.min(buffer.length, offset - skipped));
+                if (n < 0) {
+                    throw new IOException("offset exceeds the end of file: " + fileName);
+                }
+            }
+            skipped += n;
+        }
+    }
+
+    /**
+     * zipファイルの全てのエントリ(ディレクトリを除く)を1つのストリームとして連結する。
+     */
+    private static class ZipEntriesInputStream extends InputStream {
+        private final ZipInputStream zip;
+        private final String fileName;
+        private boolean entryOpened;
+
+        ZipEntriesInputStream(ZipInputStream zip, String fileName) {
+            this.zip = zip;
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return  次のエントリがない場合はfalse
+         */
+        private boolean nextEntry() throws IOException {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    System.err.println("reading zip entry: " + fileName + "!" + entry.getName() + " (" + new Date() + ")");
+                    entryOpened = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!entryOpened && !nextEntry()) {
+                return -1;
+            }
+            int n;
+            while ((n = zip.read(b, off, len)) < 0) {
+                if (!nextEntry()) {
+                    return -1;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+}
@@ -14,14 +14,37 @@ package tk.feelai.bigquery;
  * the License.
  */
 
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,22 +54,29 @@ import net.arnx.jsonic.JSONException;
 import net.arnx.jsonic.JSONReader;
 
 public class Json2csv {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     public static void usage() {
-        System.err.println("java tk.feelai.bigquery.Json2csv [--root node_pattern_path] [--nest N] [--client_ip_only] [--encoding ENCODING] [json1 [json2 [...]]]");
+        System.err.println("java tk.feelai.bigquery.Json2csv [--root node_pattern_path] [--nest N] [--client_ip_only] [--encoding ENCODING] [--avro] [--fixed-columns] [--chunk-size BYTES] [--ndjson THREADS] [--threads N] [--retries N] [--metrics PREFIX] [--jsonic] [json1 [json2 [...]]]");
         System.err.println("  Each json file should contain an array object which has same type elements.");
+        System.err.println("  Json files may be compressed by gzip (*.gz), zstd (*.zst) or zip (*.zip). Output files are named after the uncompressed name.");
         System.err.println("  Please specify --root option if you need to change root node. ex. /hits (default=/)");
         System.err.println("  Please specify --field-filter option if you need to filter fields by regex. ex. (req|ua|@timestamp) (default=.*)");
         System.err.println("  Please specify --nest option if you need to change flatten level. (default=1)");
         System.err.println("  Please specify --client-ip-only option if you need to remove previousLoadBalancerIPAddress. (default=disabled)");
         System.err.println("  Please specify --encoding option if you need to change input and output encodings. (default=UTF-8)");
+        System.err.println("  Please specify --avro option if you need to output Avro container files (*.avro and *.schema) instead of csv files. (default=disabled)");
+        System.err.println("  Please specify --fixed-columns option if you need to fix csv columns by the fields of the first row and output *.schema files. Missing fields become null, fields not in the first row are errors, and column types widen from INTEGER to FLOAT to STRING by the values. (default=disabled)");
+        System.err.println("  Please specify --chunk-size option if you need to split csv output into UTF-8 files of about BYTES named like Mysqldump2csv (TABLE.000.csv, TABLE.001.csv, ...) with TABLE.schema, which CsvUploader can upload. TABLE is the input file name without extensions. Implies --fixed-columns.");
+        System.err.println("  Please specify --ndjson option if input files (or stdin) are newline-delimited json and you need to convert line-aligned chunks of each file with THREADS threads. (csv and UTF-8 only)");
+        System.err.println("  Please specify --threads option if you need to convert input files concurrently. A failed file is retried and does not abort the others, and per-file rows and times are summarized at the end. (default=1 file at a time, abort on failure)");
+        System.err.println("  Please specify --retries option if you need to change the number of retries of a failed file with --threads. (default=2)");
+        System.err.println("  Please specify --metrics option if you need to export rows and parse/write times per file into PREFIX.jsonl and PREFIX.prom every 10 seconds.");
+        System.err.println("  Please specify --jsonic option if you need to parse non-standard json (comments, unquoted names, etc.) by the jsonic parser instead of the fast UTF-8 tokenizer. (default=disabled)");
     }
     public static void main(String[] args) throws IOException, JSONException {
-        List<Pattern> rootPath = new ArrayList<Pattern>();
-        rootPath.add(Pattern.compile(""));
-        Pattern fieldFilter = Pattern.compile(".*");
-        int nest = 1;
-        boolean clientIPOnly = false;
-        String encoding = "UTF-8";
+        Json2csv json2csv = new Json2csv();
+        String metricsPrefix = null;
+        int threads = 0;
         int index = 0;
         while (index < args.length) {
             if ("--root".equals(args[index])) {
@@ -55,80 +85,400 @@ public class Json2csv {
                     throw new IllegalArgumentException("node_pattern_path must be specified with root slash: ex. /hits");
                 }
                 for (int a = 1; a < path.length; a++) {
-                    rootPath.add(Pattern.compile(path[a]));
+                    json2csv.rootPath.add(Pattern.compile(path[a]));
                 }
                 index += 2;
             } else if ("--field-filter".equals(args[index])) {
-                fieldFilter = Pattern.compile(args[index + 1]);
+                json2csv.fieldFilter = Pattern.compile(args[index + 1]);
                 index += 2;
             } else if ("--nest".equals(args[index])) {
-                nest = Integer.parseInt(args[index + 1]);
+                json2csv.nest = Integer.parseInt(args[index + 1]);
                 index += 2;
             } else if ("--client-ip-only".equals(args[index])) {
-                clientIPOnly = true;
+                json2csv.clientIPOnly = true;
                 index += 1;
             } else if ("--encoding".equals(args[index])) {
-                encoding = args[index + 1];
+                json2csv.encoding = args[index + 1];
+                index += 2;
+            } else if ("--avro".equals(args[index])) {
+                json2csv.avro = true;
+                index += 1;
+            } else if ("--fixed-columns".equals(args[index])) {
+                json2csv.fixedColumns = true;
+                index += 1;
+            } else if ("--chunk-size".equals(args[index])) {
+                json2csv.chunkSize = Long.parseLong(args[index + 1]);
+                index += 2;
+            } else if ("--ndjson".equals(args[index])) {
+                json2csv.ndjsonThreads = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("--threads".equals(args[index])) {
+                threads = Integer.parseInt(args[index + 1]);
                 index += 2;
+            } else if ("--retries".equals(args[index])) {
+                json2csv.retries = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("--metrics".equals(args[index])) {
+                metricsPrefix = args[index + 1];
+                index += 2;
+            } else if ("--jsonic".equals(args[index])) {
+                json2csv.jsonic = true;
+                index += 1;
             } else {
                 break;
             }
         }
-        if (index < args.length) {
-            for (; index < args.length; index++) {
-                String file = args[index];
-                Reader in = new InputStreamReader(new FileInputStream(file), encoding);
+        // UTF-8以外とjsonicを指定した場合はjsonicで解析する
+        json2csv.jsonic |= !UTF8.equals(Charset.forName(json2csv.encoding));
+        if (json2csv.ndjsonThreads > 0 && (json2csv.avro || json2csv.fixedColumns || json2csv.chunkSize > 0 || json2csv.jsonic)) {
+            throw new IllegalArgumentException("--ndjson supports neither --avro, --fixed-columns, --chunk-size, --jsonic nor encodings other than UTF-8");
+        }
+        if (json2csv.chunkSize > 0 && json2csv.avro) {
+            throw new IllegalArgumentException("--chunk-size does not support --avro");
+        }
+        boolean exporting = metricsPrefix != null && Metrics.export(metricsPrefix, Metrics.DEFAULT_INTERVAL);
+        try {
+            if (index < args.length && threads > 0) {
+                if (!json2csv.convFiles(Arrays.asList(args).subList(index, args.length), threads)) {
+                    throw new IOException("some files could not be converted");
+                }
+            } else if (index < args.length) {
+                for (; index < args.length; index++) {
+                    json2csv.convFile(args[index]);
+                }
+            } else if (System.in.available() > 0) {
+                json2csv.convStdin();
+            } else {
+                usage();
+            }
+        } finally {
+            if (exporting) {
+                Metrics.close();
+            }
+        }
+    }
+
+    public final List<Pattern> rootPath = new ArrayList<Pattern>();
+    public Pattern fieldFilter = Pattern.compile(".*");
+    public int nest = 1;
+    public boolean clientIPOnly = false;
+    public String encoding = "UTF-8";
+    public boolean avro = false;
+    public boolean fixedColumns = false;
+    /** 0以外であればcsvをこのバイト数程度のファイルに分けてMysqldump2csvと同じ名前で出力する */
+    public long chunkSize = 0;
+    /** 0以外であれば入力を改行区切りのJSONとしてこのスレッド数で変換する */
+    public int ndjsonThreads = 0;
+    /** convFiles()で失敗したファイルを再試行する回数 */
+    public int retries = 2;
+    public boolean jsonic = false;
+
+    public Json2csv() {
+        rootPath.add(Pattern.compile(""));
+    }
+
+    /**
+     * 入力ファイルを変換して、圧縮を除いたファイル名に.csv(もしくは.avroと.schema)を付けたファイルに出力する。
+     * 失敗した場合は入力バイト数と行数のメトリクスに数えた分を取り消す。
+     * @return  出力した行数
+     */
+    public long convFile(String path) throws IOException, JSONException {
+        String file = InputFiles.baseName(path);
+        String table = new File(file).getName();
+        long start = System.nanoTime();
+        long inputLength = new File(path).length();
+        InputStream in = InputFiles.open(path);
+        MeteredRowWriter metered = null;
+        boolean converted = false;
+        try {
+            if (chunkSize > 0) {
+                File dir = new File(file).getAbsoluteFile().getParentFile();
+                String tableName = tableName(file);
+                SplitCsvRowWriter out = new SplitCsvRowWriter(dir, tableName, chunkSize);
                 try {
-                    PrintWriter out = new PrintWriter(file + ".csv", encoding);
-                    try {
-                        conv(rootPath, fieldFilter, nest, clientIPOnly, in, out);
-                    } finally {
-                        out.close();
-                    }
+                    File schema = new File(dir, String.format(Mysqldump2csv.SCHEMA_FILE_NAME_FORMAT, tableName));
+                    metered = new MeteredRowWriter(new FixedColumnRowWriter(out, schema), tableName, start, inputLength);
+                    conv(rootPath, fieldFilter, nest, clientIPOnly, in, encoding, jsonic, metered);
+                    converted = true;
+                    return metered.rows();
+                } finally {
+                    out.close();
+                }
+            } else if (ndjsonThreads > 0) {
+                OutputStream out = new FileOutputStream(file + ".csv");
+                try {
+                    long rows = convNdjson(rootPath, fieldFilter, nest, clientIPOnly, in, out, ndjsonThreads);
+                    MeteredRowWriter.inputBytes(table).add(inputLength);
+                    MeteredRowWriter.rows(table).add(rows);
+                    return rows;
+                } finally {
+                    out.close();
+                }
+            } else if (avro) {
+                AvroRowWriter out = new AvroRowWriter(new BufferedOutputStream(new FileOutputStream(file + ".avro")), new File(file + ".schema"), table);
+                try {
+                    metered = new MeteredRowWriter(out, table, start, inputLength);
+                    conv(rootPath, fieldFilter, nest, clientIPOnly, in, encoding, jsonic, metered);
+                    converted = true;
+                    return metered.rows();
+                } finally {
+                    out.close();
+                }
+            } else if (jsonic) {
+                PrintWriter out = new PrintWriter(file + ".csv", encoding);
+                try {
+                    metered = new MeteredRowWriter(fixColumns(new CsvRowWriter(out), fixedColumns, file), table, start, inputLength);
+                    conv(rootPath, fieldFilter, nest, clientIPOnly, in, encoding, jsonic, metered);
+                    converted = true;
+                    return metered.rows();
                 } finally {
-                    in.close();
+                    out.close();
                 }
+            } else {
+                CsvStreamRowWriter out = new CsvStreamRowWriter(new FileOutputStream(file + ".csv"));
+                try {
+                    metered = new MeteredRowWriter(fixColumns(out, fixedColumns, file), table, start, inputLength);
+                    conv(rootPath, fieldFilter, nest, clientIPOnly, in, encoding, jsonic, metered);
+                    converted = true;
+                    return metered.rows();
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            // 再試行で同じファイルを二重に数えないようにする
+            if (!converted && metered != null) {
+                metered.discard();
             }
-        } else if (System.in.available() > 0) {
-            conv(rootPath, fieldFilter, nest, clientIPOnly, new InputStreamReader(System.in, encoding), new PrintWriter(new OutputStreamWriter(System.out, encoding)));
+            in.close();
+        }
+    }
+
+    /**
+     * @param file  圧縮の拡張子を除いた入力ファイル名
+     * @return  --chunk-sizeで出力するテーブル名。ファイル名から拡張子を除き、BigQueryのテーブル名に使えない文字を置き換えたもの
+     */
+    static String tableName(String file) {
+        String name = new File(file).getName();
+        int dot = name.lastIndexOf('.');
+        return AvroWriter.name(dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    /**
+     * @return  convFile()の出力先を識別する名前
+     */
+    private String outputName(String path) {
+        File file = new File(InputFiles.baseName(path)).getAbsoluteFile();
+        return chunkSize > 0 ? new File(file.getParentFile(), tableName(file.getPath())).getPath() : file.getPath();
+    }
+
+    /**
+     * 標準入力を変換して標準出力に出力する。Avroの場合はスキーマを出力しない。
+     */
+    public void convStdin() throws IOException, JSONException {
+        if (ndjsonThreads > 0) {
+            MeteredRowWriter.rows("stdin").add(convNdjson(rootPath, fieldFilter, nest, clientIPOnly, System.in, System.out, ndjsonThreads));
+            System.out.flush();
+        } else if (avro) {
+            AvroRowWriter out = new AvroRowWriter(System.out, null, "stdin");
+            try {
+                conv(rootPath, fieldFilter, nest, clientIPOnly, System.in, encoding, jsonic, new MeteredRowWriter(out, "stdin", System.nanoTime(), 0));
+            } finally {
+                out.close();
+            }
+        } else if (jsonic) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, encoding));
+            conv(rootPath, fieldFilter, nest, clientIPOnly, System.in, encoding, jsonic, new MeteredRowWriter(fixColumns(new CsvRowWriter(out), fixedColumns, null), "stdin", System.nanoTime(), 0));
+            out.flush();
         } else {
-            usage();
+            CsvStreamRowWriter out = new CsvStreamRowWriter(System.out);
+            conv(rootPath, fieldFilter, nest, clientIPOnly, System.in, encoding, jsonic, new MeteredRowWriter(fixColumns(out, fixedColumns, null), "stdin", System.nanoTime(), 0));
+            out.flush();
+            System.out.flush();
+        }
+    }
+
+    /**
+     * 複数の入力ファイルをthreads個のスレッドで並行してconvFile()で変換する。
+     * 失敗したファイルはretries回まで最初から変換し直し、それでも失敗した場合も他のファイルの変換は続ける。
+     * 最後にファイル毎の行数, 時間, 試行回数を入力の順に標準エラー出力へ書き出す。
+     * 出力ファイル名は逐次処理の場合と同一で、同じ出力ファイルになる入力が複数ある場合は変換を始めずにエラーとする。
+     * @return  全てのファイルを変換できた場合はtrue
+     */
+    public boolean convFiles(List<String> paths, int threads) throws IOException {
+        Set<String> outputs = new HashSet<String>();
+        for (String path : paths) {
+            if (!outputs.add(outputName(path))) {
+                throw new IllegalArgumentException("input files have the same output name: " + outputName(path));
+            }
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<FileResult>> results = new ArrayList<Future<FileResult>>();
+        try {
+            for (final String path : paths) {
+                results.add(workers.submit(new Callable<FileResult>() {
+                    @Override
+                    public FileResult call() {
+                        return convFileWithRetry(path);
+                    }
+                }));
+            }
+            long rows = 0, failed = 0;
+            double seconds = 0;
+            System.err.println("file\trows\tseconds\tattempts\tstatus");
+            for (Future<FileResult> future : results) {
+                FileResult r = get(future);
+                System.err.println(String.format("%s\t%d\t%.3f\t%d\t%s", r.path, r.rows, r.seconds, r.attempts, r.failure == null ? "ok" : "failed: " + r.failure));
+                rows += r.rows;
+                seconds += r.seconds;
+                if (r.failure != null) {
+                    failed++;
+                }
+            }
+            System.err.println(String.format("converted %,d files (%,d failed), %,d rows in %.3f seconds of file time", paths.size() - failed, failed, rows, seconds));
+            return failed == 0;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static class FileResult {
+        final String path;
+        long rows;
+        double seconds;
+        int attempts;
+        Throwable failure;
+        FileResult(String path) {
+            this.path = path;
+        }
+    }
+
+    private FileResult convFileWithRetry(String path) {
+        FileResult result = new FileResult(path);
+        while (true) {
+            result.attempts++;
+            long start = System.nanoTime();
+            try {
+                result.rows = convFile(path);
+                result.failure = null;
+            } catch (Exception e) {
+                result.failure = e;
+            }
+            result.seconds = (System.nanoTime() - start) / 1e9;
+            if (result.failure == null || result.attempts > retries) {
+                return result;
+            }
+            System.err.println("retrying " + path + " (" + result.attempts + "/" + retries + "): " + result.failure);
+        }
+    }
+
+    /**
+     * @param file  nullでなければ<file>.schemaにスキーマを出力する
+     */
+    private static RowWriter fixColumns(RowWriter out, boolean fixedColumns, String file) {
+        return fixedColumns ? new FixedColumnRowWriter(out, file != null ? new File(file + ".schema") : null) : out;
+    }
+    private static void conv(List<Pattern> rootPath, Pattern fieldFilter, int nestLevel, boolean clientIPOnly, InputStream in, String encoding, boolean jsonic, RowWriter out) throws IOException, JSONException {
+        if (jsonic) {
+            conv(rootPath, fieldFilter, nestLevel, clientIPOnly, new InputStreamReader(in, encoding), out);
+        } else {
+            conv(rootPath, fieldFilter, nestLevel, clientIPOnly, in, out);
         }
     }
     public static void conv(List<Pattern> rootPath, Pattern fieldFilter, int nestLevel, boolean clientIPOnly, Reader in, PrintWriter out) throws IOException, JSONException {
+        conv(rootPath, fieldFilter, nestLevel, clientIPOnly, in, new CsvRowWriter(out));
+    }
+    public static void conv(List<Pattern> rootPath, Pattern fieldFilter, int nestLevel, boolean clientIPOnly, Reader in, RowWriter out) throws IOException, JSONException {
         JSONReader reader = new JSON().getReader(in);
+        Projection projection = new Projection(rootPath, fieldFilter);
         JSONEventType type;
-        boolean first = true;
         ArrayList<String> path = new ArrayList<String>();
         path.add("");
         int nest = 0, depth = 0;
         boolean inTarget = false;
         while ((type = reader.next()) != null) {
             switch (type) {
+            case COMMENT:
+            case WHITESPACE:
+                break;
+            case NAME:
+                if (path.size() == depth) {
+                    path.add(reader.getString());
+                } else {
+                    path.set(depth, reader.getString());
+                }
+                break;
+            case START_ARRAY:
+                if (path.size() == depth) {
+                    path.add("");
+                } else {
+                    path.set(depth, "");
+                }
+                break;
+            case START_OBJECT:
+                depth++;
+                inTarget |= projection.inTarget(path, depth);
+                if (inTarget) {
+                    nest++;
+                }
+                break;
+            case END_ARRAY:
+                path.remove(depth);
+                break;
+            case END_OBJECT:
+                depth--;
+                if (inTarget && --nest == nestLevel) {
+                    out.endRow();
+                }
+                inTarget = projection.inTarget(path, depth);
+                break;
             case STRING:
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    out.string(path.get(depth), reader.getString());
+                }
+                break;
             case NUMBER:
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    out.number(path.get(depth), reader.getNumber());
+                }
+                break;
             case BOOLEAN:
-            case NULL:
-                if (inTarget && isTargetField(path, depth, fieldFilter)) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        out.print(",");
-                    }
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    out.string(path.get(depth), String.valueOf(reader.getBoolean()));
                 }
                 break;
-            default:
+            case NULL:
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    out.nullValue(path.get(depth));
+                }
                 break;
             }
+        }
+    }
+
+    private static final byte[] TRUE_BYTES = "true".getBytes(UTF8);
+    private static final byte[] FALSE_BYTES = "false".getBytes(UTF8);
+
+    /**
+     * conv(List, Pattern, int, boolean, Reader, RowWriter)と同じ変換をJsonTokenizerで行う。入力はUTF-8とする。
+     * outがByteRowWriterであれば値をStringにせずにバイト列のまま渡す。
+     */
+    public static void conv(List<Pattern> rootPath, Pattern fieldFilter, int nestLevel, boolean clientIPOnly, InputStream in, RowWriter out) throws IOException {
+        JsonTokenizer reader = new JsonTokenizer(in);
+        Projection projection = new Projection(rootPath, fieldFilter);
+        ByteRowWriter byteOut = out instanceof ByteRowWriter ? (ByteRowWriter) out : null;
+        JsonTokenizer.Token type;
+        ArrayList<String> path = new ArrayList<String>();
+        path.add("");
+        int nest = 0, depth = 0;
+        boolean inTarget = false;
+        while ((type = reader.next()) != null) {
             switch (type) {
-            case COMMENT:
-            case WHITESPACE:
-                break;
             case NAME:
                 if (path.size() == depth) {
-                    path.add(reader.getString());
+                    path.add(reader.name());
                 } else {
-                    path.set(depth, reader.getString());
+                    path.set(depth, reader.name());
                 }
                 break;
             case START_ARRAY:
@@ -140,7 +490,7 @@ public class Json2csv {
                 break;
             case START_OBJECT:
                 depth++;
-                inTarget |= isInTarget(rootPath, path, depth);
+                inTarget |= projection.inTarget(path, depth);
                 if (inTarget) {
                     nest++;
                 }
@@ -151,36 +501,948 @@ public class Json2csv {
             case END_OBJECT:
                 depth--;
                 if (inTarget && --nest == nestLevel) {
-                    out.println("");
-                    first = true;
+                    out.endRow();
                 }
-                inTarget = isInTarget(rootPath, path, depth);
+                inTarget = projection.inTarget(path, depth);
                 break;
             case STRING:
-                if (inTarget && isTargetField(path, depth, fieldFilter)) {
-                    String line = reader.getString().replaceAll("[\\t\\n\\r\\\"]", " ").replaceAll(", [0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+", "");
-                    out.print('"');
-                    out.print(line);
-                    out.print('"');
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    if (byteOut != null) {
+                        byteOut.string(path.get(depth), reader.value(), 0, reader.length());
+                    } else {
+                        out.string(path.get(depth), new String(reader.value(), 0, reader.length(), UTF8));
+                    }
                 }
                 break;
             case NUMBER:
-                if (inTarget && isTargetField(path, depth, fieldFilter)) {
-                    out.print(reader.getNumber());
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    if (byteOut != null && isPlainNumber(reader.value(), reader.length())) {
+                        byteOut.number(path.get(depth), reader.value(), 0, reader.length());
+                    } else {
+                        // jsonicと同じくBigDecimalの表記で出力する
+                        out.number(path.get(depth), new BigDecimal(reader.string()));
+                    }
                 }
                 break;
-            case BOOLEAN:
-                if (inTarget && isTargetField(path, depth, fieldFilter)) {
-                    out.print('"');
-                    out.print(reader.getBoolean());
-                    out.print('"');
+            case TRUE:
+            case FALSE:
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    byte[] b = type == JsonTokenizer.Token.TRUE ? TRUE_BYTES : FALSE_BYTES;
+                    if (byteOut != null) {
+                        byteOut.string(path.get(depth), b, 0, b.length);
+                    } else {
+                        out.string(path.get(depth), String.valueOf(type == JsonTokenizer.Token.TRUE));
+                    }
                 }
                 break;
             case NULL:
+                if (inTarget && projection.targetField(path.get(depth))) {
+                    out.nullValue(path.get(depth));
+                }
                 break;
             }
         }
     }
+
+    /** --ndjsonで1つのワーカースレッドに渡す入力の大きさ(行の途中では分割しないため、実際には次の改行まで) */
+    public static int ndjsonChunkSize = 4 << 20;
+
+    /**
+     * 改行区切りのJSON(1行に1つのオブジェクト)を行単位のチャンクに分け、threads個のワーカースレッドでcsvに変換して入力順にoutへ書き出す。
+     * 各行の終わりで変換の状態は初期状態に戻るため、結果は全体を1つのストリームとしてconv()で変換した場合と同一になる。
+     * 変換中と書き出し待ちのチャンクは合わせてthreads * 2個までとし、先頭のチャンクの変換が終わるまで読み込みを待つ。
+     * そのため標準入力のように長さの分からない入力でもメモリ使用量は一定に収まる。
+     * @return  出力した行数
+     */
+    public static long convNdjson(final List<Pattern> rootPath, final Pattern fieldFilter, final int nestLevel, final boolean clientIPOnly, InputStream in, OutputStream out, int threads) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Queue<Future<NdjsonChunk>> pending = new ArrayDeque<Future<NdjsonChunk>>();
+        long rows = 0;
+        try {
+            byte[] buffer = new byte[ndjsonChunkSize];
+            int length = 0;
+            long offset = 0;
+            boolean eof = false;
+            while (!eof || length > 0 || !pending.isEmpty()) {
+                while ((!eof || length > 0) && pending.size() < threads * 2) {
+                    int n = eof ? -1 : in.read(buffer, length, buffer.length - length);
+                    if (n > 0) {
+                        length += n;
+                        if (length < buffer.length) {
+                            continue;
+                        }
+                    } else if (n < 0) {
+                        eof = true;
+                    } else {
+                        continue;
+                    }
+                    // 最後の改行までを1つのチャンクとし、残りは次のチャンクの先頭に回す
+                    int end = length;
+                    if (!eof) {
+                        while (end > 0 && buffer[end - 1] != '\n') {
+                            end--;
+                        }
+                        if (end == 0) {
+                            // チャンクより長い行は読み込み領域を広げて行末まで読む
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                            continue;
+                        }
+                    }
+                    final byte[] chunk = Arrays.copyOf(buffer, end);
+                    final long chunkOffset = offset;
+                    pending.add(workers.submit(new Callable<NdjsonChunk>() {
+                        @Override
+                        public NdjsonChunk call() throws IOException {
+                            return convNdjsonChunk(rootPath, fieldFilter, nestLevel, clientIPOnly, chunk, chunkOffset);
+                        }
+                    }));
+                    System.arraycopy(buffer, end, buffer, 0, length - end);
+                    length -= end;
+                    offset += end;
+                    if (buffer.length > ndjsonChunkSize && length < ndjsonChunkSize) {
+                        buffer = Arrays.copyOf(buffer, ndjsonChunkSize);
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    NdjsonChunk converted = get(pending.poll());
+                    out.write(converted.csv, 0, converted.length);
+                    rows += converted.rows;
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return rows;
+    }
+
+    private static class NdjsonChunk {
+        final byte[] csv;
+        final int length;
+        final long rows;
+        NdjsonChunk(byte[] csv, int length, long rows) {
+            this.csv = csv;
+            this.length = length;
+            this.rows = rows;
+        }
+    }
+
+    private static NdjsonChunk convNdjsonChunk(List<Pattern> rootPath, Pattern fieldFilter, int nestLevel, boolean clientIPOnly, byte[] chunk, long offset) throws IOException {
+        ByteArrayOutputStream csv = new ByteArrayOutputStream(chunk.length + 0x100) {
+            @Override
+            public synchronized byte[] toByteArray() {
+                // 書き出すまでの間だけ使うので複製しない
+                return buf;
+            }
+        };
+        CsvStreamRowWriter out = new CsvStreamRowWriter(csv);
+        try {
+            conv(rootPath, fieldFilter, nestLevel, clientIPOnly, new ByteArrayInputStream(chunk), out);
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + " in the chunk starting at byte " + offset, e);
+        }
+        out.flush();
+        return new NdjsonChunk(csv.toByteArray(), csv.size(), out.rows());
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return  BigDecimal.toString()が入力と同じ表記になる数値ならtrue。
+     *          指数表記, -0で始まるもの, 小数点以下に0が6個以上続く0.…(0.0000001は1E-7になる)はfalse
+     */
+    static boolean isPlainNumber(byte[] value, int length) {
+        if (length >= 2 && value[0] == '-' && value[1] == '0') {
+            return false;
+        }
+        if (length >= 2 && value[0] == '0' && value[1] == '.') {
+            int zeros = 0;
+            while (2 + zeros < length && value[2 + zeros] == '0') {
+                zeros++;
+            }
+            if (zeros >= 6) {
+                return false;
+            }
+        }
+        for (int a = 0; a < length; a++) {
+            if (value[a] == 'e' || value[a] == 'E') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final Pattern PROXY_ADDRESS = Pattern.compile(", [0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+");
+    private static final Pattern CSV_SPECIAL_CHARS = Pattern.compile("[\\t\\n\\r\\\"]");
+
+    /**
+     * 文字列から", 1.2.3.4"の形式(プロキシのIPアドレス)を全て取り除く。
+     */
+    static String removeProxyAddresses(String value) {
+        return value.indexOf(", ") < 0 ? value : PROXY_ADDRESS.matcher(value).replaceAll("");
+    }
+
+    /**
+     * @return  posから始まる[0-9]+(\\.[0-9]+){3}の終端。一致しなければ-1
+     */
+    private static int matchAddress(byte[] value, int pos, int length) {
+        for (int part = 0; part < 4; part++) {
+            if (part > 0) {
+                if (pos >= length || value[pos] != '.') {
+                    return -1;
+                }
+                pos++;
+            }
+            int start = pos;
+            while (pos < length && value[pos] >= '0' && value[pos] <= '9') {
+                pos++;
+            }
+            if (pos == start) {
+                return -1;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * 変換対象の値を1行分ずつ受け取って出力する。文字列はjsonの値のまま渡すので、プロキシのIPアドレスは各RowWriterが取り除く。
+     */
+    public interface RowWriter {
+        void string(String name, String value) throws IOException;
+        void number(String name, Number value) throws IOException;
+        void nullValue(String name) throws IOException;
+        void endRow() throws IOException;
+    }
+
+    /**
+     * CsvUploaderが読み込める形式(名前\t型)でスキーマを出力する。
+     */
+    static void writeSchema(File schemaFile, String[] names, String[] types) throws IOException {
+        PrintWriter schema = new PrintWriter(schemaFile);
+        try {
+            for (int a = 0; a < names.length; a++) {
+                schema.println(String.format("%s\t%s", names[a], types[a]));
+            }
+        } finally {
+            schema.close();
+        }
+    }
+
+    /**
+     * 最初の行のフィールドで列の並びを決め、以降の行の値をその並びに揃えてoutに出力する。
+     * 行にないフィールドはnullとし、同じ行に同じ名前のフィールドが複数ある場合は2番目以降に連番を付ける。
+     * 最初の行になかったフィールドは列を追加できないので例外を投げる。
+     * 列の型は出現した値に合わせてINTEGER, FLOAT, STRINGの順に広げ、型が変わる度にスキーマを出力し直す。値は入力のまま出力する。
+     */
+    public static class FixedColumnRowWriter implements ByteRowWriter {
+        private static final int ABSENT = 0, NULL = 1, STRING = 2, NUMBER = 3;
+        private static final String[] TYPES = {"INTEGER", "FLOAT", "STRING"};
+        private static final int INTEGER_TYPE = 0, FLOAT_TYPE = 1, STRING_TYPE = 2, NO_TYPE = -1;
+        private final RowWriter out;
+        private final ByteRowWriter byteOut;
+        private final File schemaFile;
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, Integer> columns = new HashMap<String, Integer>();
+        private boolean fixed;
+        private String[] columnNames;
+        /** 列毎のTYPESの添字。値がnullのみの列はNO_TYPE */
+        private int[] types;
+        private int[] kinds = new int[0x10];
+        private byte[][] values = new byte[0x10][];
+        private int[] lengths = new int[0x10];
+
+        /**
+         * @param schemaFile    nullでなければ最初の行を出力する前にスキーマを出力する
+         */
+        public FixedColumnRowWriter(RowWriter out, File schemaFile) {
+            this.out = out;
+            byteOut = out instanceof ByteRowWriter ? (ByteRowWriter) out : null;
+            this.schemaFile = schemaFile;
+        }
+        /**
+         * @return  値を格納する列
+         */
+        private int column(String name) {
+            Integer column = columns.get(name);
+            // 同じ行で既に値がある場合は連番を付けた名前で探す
+            for (int n = 2; column != null && kinds[column] != ABSENT; n++) {
+                String unique = name + "_" + n;
+                column = columns.get(unique);
+                if (column == null) {
+                    name = unique;
+                }
+            }
+            if (column != null) {
+                return column;
+            }
+            if (fixed) {
+                throw new IllegalStateException("field not in the first row: " + name);
+            }
+            column = names.size();
+            names.add(name);
+            columns.put(name, column);
+            if (column == kinds.length) {
+                kinds = Arrays.copyOf(kinds, column * 2);
+                values = Arrays.copyOf(values, column * 2);
+                lengths = Arrays.copyOf(lengths, column * 2);
+            }
+            return column;
+        }
+        private void set(String name, int kind, byte[] value, int off, int len) {
+            int column = column(name);
+            kinds[column] = kind;
+            if (value != null) {
+                if (values[column] == null || values[column].length < len) {
+                    values[column] = new byte[Math.max(len, 0x20)];
+                }
+                System.arraycopy(value, off, values[column], 0, len);
+                lengths[column] = len;
+            }
+        }
+        @Override
+        public void string(String name, byte[] value, int off, int len) {
+            set(name, STRING, value, off, len);
+        }
+        @Override
+        public void number(String name, byte[] value, int off, int len) {
+            set(name, NUMBER, value, off, len);
+        }
+        @Override
+        public void string(String name, String value) {
+            byte[] b = value.getBytes(UTF8);
+            set(name, STRING, b, 0, b.length);
+        }
+        @Override
+        public void number(String name, Number value) {
+            byte[] b = value.toString().getBytes(UTF8);
+            set(name, NUMBER, b, 0, b.length);
+        }
+        @Override
+        public void nullValue(String name) {
+            set(name, NULL, null, 0, 0);
+        }
+        @Override
+        public void endRow() throws IOException {
+            if (!fixed) {
+                fix();
+            }
+            boolean widened = false;
+            for (int a = 0; a < types.length; a++) {
+                int type = kinds[a] == STRING ? STRING_TYPE : kinds[a] == NUMBER ? (isInteger(values[a], lengths[a]) ? INTEGER_TYPE : FLOAT_TYPE) : NO_TYPE;
+                if (type > types[a]) {
+                    types[a] = type;
+                    widened = true;
+                }
+            }
+            if (widened || !fixed) {
+                fixed = true;
+                if (schemaFile != null) {
+                    String[] schemaTypes = new String[types.length];
+                    for (int a = 0; a < types.length; a++) {
+                        schemaTypes[a] = TYPES[types[a] == NO_TYPE ? STRING_TYPE : types[a]];
+                    }
+                    writeSchema(schemaFile, columnNames, schemaTypes);
+                }
+            }
+            for (int a = 0; a < types.length; a++) {
+                String name = names.get(a);
+                int kind = kinds[a];
+                if (kind == STRING) {
+                    if (byteOut != null) {
+                        byteOut.string(name, values[a], 0, lengths[a]);
+                    } else {
+                        out.string(name, new String(values[a], 0, lengths[a], UTF8));
+                    }
+                } else if (kind == NUMBER) {
+                    if (byteOut != null) {
+                        byteOut.number(name, values[a], 0, lengths[a]);
+                    } else {
+                        out.number(name, new BigDecimal(new String(values[a], 0, lengths[a], UTF8)));
+                    }
+                } else {
+                    out.nullValue(name);
+                }
+                kinds[a] = ABSENT;
+            }
+            out.endRow();
+        }
+        /**
+         * @return  符号と数字のみで64bit整数に収まる数値ならtrue
+         */
+        private static boolean isInteger(byte[] value, int length) {
+            int start = length > 0 && value[0] == '-' ? 1 : 0;
+            if (length == start || length - start > 19) {
+                return false;
+            }
+            for (int a = start; a < length; a++) {
+                if (value[a] < '0' || value[a] > '9') {
+                    return false;
+                }
+            }
+            try {
+                Long.parseLong(new String(value, 0, length, UTF8));
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        /**
+         * 最初の行で列の並びと名前を決める。スキーマはendRow()で型を決めてから出力する。
+         */
+        private void fix() {
+            columnNames = new String[names.size()];
+            types = new int[names.size()];
+            Arrays.fill(types, NO_TYPE);
+            Set<String> used = new HashSet<String>();
+            for (int a = 0; a < columnNames.length; a++) {
+                // BigQueryの列名に使えない文字を置き換えた結果が重複する場合は連番を付ける
+                String name = AvroWriter.name(names.get(a));
+                for (int n = 2; !used.add(name); n++) {
+                    name = AvroWriter.name(names.get(a)) + "_" + n;
+                }
+                columnNames[a] = name;
+            }
+        }
+    }
+
+    /**
+     * 値を出現順にcsvの1行として出力する。文字列中のタブ, 改行, 引用符は空白に置き換えてからプロキシのIPアドレスを取り除く。
+     */
+    public static class CsvRowWriter implements RowWriter {
+        private final PrintWriter out;
+        private boolean first = true;
+        public CsvRowWriter(PrintWriter out) {
+            this.out = out;
+        }
+        private void separator() {
+            if (first) {
+                first = false;
+            } else {
+                out.print(",");
+            }
+        }
+        @Override
+        public void string(String name, String value) {
+            separator();
+            out.print('"');
+            out.print(removeProxyAddresses(CSV_SPECIAL_CHARS.matcher(value).replaceAll(" ")));
+            out.print('"');
+        }
+        @Override
+        public void number(String name, Number value) {
+            separator();
+            out.print(value);
+        }
+        @Override
+        public void nullValue(String name) {
+            separator();
+        }
+        @Override
+        public void endRow() {
+            out.println("");
+            first = true;
+        }
+    }
+
+    /**
+     * JsonTokenizerによる変換で、値をUTF-8のバイト列のまま受け取るRowWriter。
+     */
+    public interface ByteRowWriter extends RowWriter {
+        void string(String name, byte[] value, int off, int len) throws IOException;
+        /**
+         * @param value 入力の数値の表記そのまま(指数表記を含まない)
+         */
+        void number(String name, byte[] value, int off, int len) throws IOException;
+    }
+
+    /**
+     * CsvRowWriterと同じcsvをUTF-8のバイト列として直接outに出力する。
+     */
+    public static class CsvStreamRowWriter implements ByteRowWriter, Closeable {
+        private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(UTF8);
+        private final OutputStream out;
+        private final byte[] buffer = new byte[0x10000];
+        private int length;
+        private boolean first = true;
+        private long rows;
+        private long flushed;
+        public CsvStreamRowWriter(OutputStream out) {
+            this.out = out;
+        }
+        private void separator() throws IOException {
+            if (first) {
+                first = false;
+            } else {
+                write((byte) ',');
+            }
+        }
+        private void write(byte b) throws IOException {
+            if (length == buffer.length) {
+                flush();
+            }
+            buffer[length++] = b;
+        }
+        private void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length) {
+                    flush();
+                }
+                int size = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, size);
+                length += size;
+                off += size;
+                len -= size;
+            }
+        }
+        @Override
+        public void string(String name, byte[] value, int off, int len) throws IOException {
+            separator();
+            write((byte) '"');
+            // CsvRowWriterと同じく、タブ, 改行, 引用符を空白に置き換えた上で", 1.2.3.4"を取り除いた結果を1回の走査でコピーする
+            int end = off + len;
+            while (off < end) {
+                byte b = replaceSpecialChar(value[off]);
+                if (b == ',' && off + 1 < end && replaceSpecialChar(value[off + 1]) == ' ') {
+                    int address = matchAddress(value, off + 2, end);
+                    if (address >= 0) {
+                        off = address;
+                        continue;
+                    }
+                }
+                write(b);
+                off++;
+            }
+            write((byte) '"');
+        }
+        private static byte replaceSpecialChar(byte b) {
+            return b == '\t' || b == '\n' || b == '\r' || b == '"' ? (byte) ' ' : b;
+        }
+        @Override
+        public void number(String name, byte[] value, int off, int len) throws IOException {
+            separator();
+            write(value, off, len);
+        }
+        @Override
+        public void string(String name, String value) throws IOException {
+            byte[] b = value.getBytes(UTF8);
+            string(name, b, 0, b.length);
+        }
+        @Override
+        public void number(String name, Number value) throws IOException {
+            byte[] b = value.toString().getBytes(UTF8);
+            number(name, b, 0, b.length);
+        }
+        @Override
+        public void nullValue(String name) throws IOException {
+            separator();
+        }
+        @Override
+        public void endRow() throws IOException {
+            write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+            first = true;
+            rows++;
+        }
+        /**
+         * @return  出力した行数
+         */
+        public long rows() {
+            return rows;
+        }
+        /**
+         * @return  出力したバイト数(バッファ中のものを含む)
+         */
+        public long size() {
+            return flushed + length;
+        }
+        public void flush() throws IOException {
+            out.write(buffer, 0, length);
+            flushed += length;
+            length = 0;
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * csvをMysqldump2csv.CSV_FILE_NAME_FORMATの名前のファイル(<table>.000.csv, <table>.001.csv, ...)に分けてUTF-8で出力する。
+     * 各ファイルがchunkSizeバイト以上になった行の後で次のファイルに切り替える。出力はCsvUploaderでそのままアップロードできる。
+     * 前回の実行で出力した同じテーブルのチャンクは、番号がずれて残らないように最初に削除する。
+     */
+    public static class SplitCsvRowWriter implements ByteRowWriter, Closeable {
+        private final File dir;
+        private final String tableName;
+        private final long chunkSize;
+        private CsvStreamRowWriter out;
+        private int index;
+
+        public SplitCsvRowWriter(File dir, String tableName, long chunkSize) throws IOException {
+            this.dir = dir;
+            this.tableName = tableName;
+            this.chunkSize = chunkSize;
+            final Pattern chunk = Pattern.compile(String.format(Mysqldump2csv.CSV_FILE_NAME_PATTERN, Pattern.quote(tableName)));
+            File[] old = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return chunk.matcher(name).matches();
+                }
+            });
+            for (File f : old != null ? old : new File[0]) {
+                if (!f.delete()) {
+                    throw new IOException("failed to delete: " + f);
+                }
+            }
+        }
+        /**
+         * 最初の値を書く時にファイルを作るため、最後に空のファイルは残らない。
+         */
+        private CsvStreamRowWriter out() throws IOException {
+            if (out == null) {
+                out = new CsvStreamRowWriter(new FileOutputStream(new File(dir, String.format(Mysqldump2csv.CSV_FILE_NAME_FORMAT, tableName, index++, ""))));
+            }
+            return out;
+        }
+        @Override
+        public void string(String name, byte[] value, int off, int len) throws IOException {
+            out().string(name, value, off, len);
+        }
+        @Override
+        public void number(String name, byte[] value, int off, int len) throws IOException {
+            out().number(name, value, off, len);
+        }
+        @Override
+        public void string(String name, String value) throws IOException {
+            out().string(name, value);
+        }
+        @Override
+        public void number(String name, Number value) throws IOException {
+            out().number(name, value);
+        }
+        @Override
+        public void nullValue(String name) throws IOException {
+            out().nullValue(name);
+        }
+        @Override
+        public void endRow() throws IOException {
+            out().endRow();
+            if (out.size() >= chunkSize) {
+                out.close();
+                out = null;
+            }
+        }
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * 行数と書き込みにかかった時間を計測しながらoutに出力する。最後の行を出力する度に変換全体の時間から書き込み時間を除いたものを解析時間とする。
+     * 書き込み時間はSAMPLING行に1行だけ計り、その行数倍で見積もる。
+     */
+    static class MeteredRowWriter implements ByteRowWriter {
+        private static final int SAMPLING = 64;
+        private final RowWriter out;
+        private final ByteRowWriter byteOut;
+        private final long start;
+        private final long inputLength;
+        private final Metrics.Counter rows, inputBytes;
+        private final Metrics.Gauge parseSeconds, writeSeconds;
+        private long writeNanos;
+        private long rowCount;
+        private boolean timed = true;
+
+        /**
+         * @param start 変換を開始したSystem.nanoTime()
+         * @param inputLength   入力ファイルのバイト数
+         */
+        MeteredRowWriter(RowWriter out, String table, long start, long inputLength) {
+            this.out = out;
+            byteOut = out instanceof ByteRowWriter ? (ByteRowWriter) out : null;
+            this.start = start;
+            this.inputLength = inputLength;
+            rows = rows(table);
+            parseSeconds = Metrics.gauge("json2csv_parse_seconds", "Time spent parsing json per input file.", "table", table);
+            writeSeconds = Metrics.gauge("json2csv_write_seconds", "Time spent writing rows per input file (estimated by sampling).", "table", table);
+            inputBytes = inputBytes(table);
+            inputBytes.add(inputLength);
+        }
+        /**
+         * @return  出力した行数
+         */
+        long rows() {
+            return rowCount;
+        }
+        /**
+         * 変換に失敗した場合に、このファイルについて数えた入力バイト数と行数を取り消す。
+         */
+        void discard() {
+            inputBytes.add(-inputLength);
+            rows.add(-rowCount);
+        }
+        static Metrics.Counter rows(String table) {
+            return Metrics.counter("json2csv_rows_total", "Rows written per input file.", "table", table);
+        }
+        static Metrics.Counter inputBytes(String table) {
+            return Metrics.counter("json2csv_input_bytes_total", "Input file bytes (compressed if the file is compressed).", "table", table);
+        }
+        private long begin() {
+            return timed ? System.nanoTime() : 0;
+        }
+        private void end(long t) {
+            if (timed) {
+                writeNanos += (System.nanoTime() - t) * SAMPLING;
+            }
+        }
+        @Override
+        public void string(String name, String value) throws IOException {
+            long t = begin();
+            out.string(name, value);
+            end(t);
+        }
+        @Override
+        public void number(String name, Number value) throws IOException {
+            long t = begin();
+            out.number(name, value);
+            end(t);
+        }
+        @Override
+        public void string(String name, byte[] value, int off, int len) throws IOException {
+            long t = begin();
+            if (byteOut != null) {
+                byteOut.string(name, value, off, len);
+            } else {
+                out.string(name, new String(value, off, len, UTF8));
+            }
+            end(t);
+        }
+        @Override
+        public void number(String name, byte[] value, int off, int len) throws IOException {
+            long t = begin();
+            if (byteOut != null) {
+                byteOut.number(name, value, off, len);
+            } else {
+                out.number(name, new BigDecimal(new String(value, off, len, UTF8)));
+            }
+            end(t);
+        }
+        @Override
+        public void nullValue(String name) throws IOException {
+            long t = begin();
+            out.nullValue(name);
+            end(t);
+        }
+        @Override
+        public void endRow() throws IOException {
+            long t = begin();
+            out.endRow();
+            end(t);
+            rows.inc();
+            if (timed) {
+                long now = System.nanoTime();
+                writeSeconds.set(writeNanos / 1e9);
+                parseSeconds.set(Math.max(now - start - writeNanos, 0) / 1e9);
+            }
+            timed = ++rowCount % SAMPLING == 0;
+        }
+    }
+
+    /**
+     * 値をフィールド名で対応付けてAvroのレコードとして出力する。
+     * スキーマは最初の行から決定し、整数のフィールドをINTEGER、それ以外の数値のフィールドをFLOAT、それ以外をSTRINGとする。
+     * スキーマはファイルの先頭に書くので後から変えられない。最初の行にないフィールドや列の型で表せない値は例外を投げる。
+     */
+    public static class AvroRowWriter implements RowWriter, Closeable {
+        private final OutputStream out;
+        private final File schemaFile;
+        private final String tableName;
+        private final List<String> names = new ArrayList<String>();
+        private final List<Object> values = new ArrayList<Object>();
+        private final AvroWriter.Encoder encoder = new AvroWriter.Encoder();
+        private Map<String, Integer> columns;
+        private String[] types;
+        private AvroWriter writer;
+
+        /**
+         * @param schemaFile    nullでなければCsvUploaderが読み込める形式でスキーマを出力する
+         */
+        public AvroRowWriter(OutputStream out, File schemaFile, String tableName) {
+            this.out = out;
+            this.schemaFile = schemaFile;
+            this.tableName = tableName;
+        }
+        private void add(String name, Object value) {
+            // 同じ行に同じ名前のフィールドが複数ある場合は2番目以降に連番を付ける
+            String unique = name;
+            for (int n = 2; names.contains(unique); n++) {
+                unique = name + "_" + n;
+            }
+            names.add(unique);
+            values.add(value);
+        }
+        @Override
+        public void string(String name, String value) {
+            add(name, removeProxyAddresses(value));
+        }
+        @Override
+        public void number(String name, Number value) {
+            add(name, value);
+        }
+        @Override
+        public void nullValue(String name) {
+            add(name, null);
+        }
+        @Override
+        public void endRow() throws IOException {
+            if (writer == null) {
+                open();
+            }
+            Object[] row = new Object[columns.size()];
+            for (int a = 0; a < names.size(); a++) {
+                Integer column = columns.get(names.get(a));
+                if (column == null) {
+                    throw new IllegalStateException("field not in the first row: " + names.get(a));
+                }
+                row[column] = values.get(a);
+            }
+            encoder.clear();
+            for (int a = 0; a < row.length; a++) {
+                Object value = row[a];
+                if (value == null) {
+                    encoder.writeNull();
+                    continue;
+                }
+                encoder.writeNotNull();
+                try {
+                    if ("INTEGER".equals(types[a])) {
+                        encoder.writeLong(value instanceof Number ? new BigDecimal(value.toString()).longValueExact() : Long.parseLong(value.toString()));
+                    } else if ("FLOAT".equals(types[a])) {
+                        encoder.writeDouble(value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString()));
+                    } else {
+                        encoder.writeString(value.toString());
+                    }
+                } catch (ArithmeticException e) {
+                    throw new IllegalStateException(types[a] + " column " + names.get(a) + " cannot hold " + value, e);
+                } catch (NumberFormatException e) {
+                    throw new IllegalStateException(types[a] + " column " + names.get(a) + " cannot hold " + value, e);
+                }
+            }
+            writer.append(encoder.buffer(), 0, encoder.length());
+            names.clear();
+            values.clear();
+        }
+        private void open() throws IOException {
+            columns = new HashMap<String, Integer>();
+            String[] columnNames = new String[names.size()];
+            types = new String[names.size()];
+            for (int a = 0; a < names.size(); a++) {
+                columns.put(names.get(a), a);
+                columnNames[a] = AvroWriter.name(names.get(a));
+                Object value = values.get(a);
+                types[a] = !(value instanceof Number) ? "STRING" : isLong((Number) value) ? "INTEGER" : "FLOAT";
+            }
+            writer = new AvroWriter(out, AvroWriter.schema(tableName, columnNames, types));
+            if (schemaFile != null) {
+                writeSchema(schemaFile, columnNames, types);
+            }
+        }
+        /**
+         * @return  小数点や指数のない64bit整数に収まる数値ならtrue
+         */
+        private static boolean isLong(Number value) {
+            String text = value.toString();
+            if (!text.matches("-?[0-9]+")) {
+                return false;
+            }
+            try {
+                Long.parseLong(text);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        @Override
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            } else {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * --rootと--field-filterの判定結果を名前毎に記録し、同じ名前を正規表現で判定し直さないようにする。
+     * --rootは階層毎に判定するため、各階層で初めて現れた名前のみを正規表現で判定すればよい。
+     */
+    static class Projection {
+        /** 記録する名前の種類の上限。名前が値のように変化する入力で記録が増え続けないように、超えた場合は作り直す */
+        private static final int MAX_NAMES = 0x10000;
+        private final Pattern[] rootPath;
+        private final List<Map<String, Boolean>> rootMatches = new ArrayList<Map<String, Boolean>>();
+        private final Pattern fieldFilter;
+        private final Map<String, Boolean> fieldMatches = new HashMap<String, Boolean>();
+
+        Projection(List<Pattern> rootPath, Pattern fieldFilter) {
+            this.rootPath = rootPath.toArray(new Pattern[rootPath.size()]);
+            for (int a = 0; a < rootPath.size(); a++) {
+                rootMatches.add(new HashMap<String, Boolean>());
+            }
+            this.fieldFilter = fieldFilter;
+        }
+        /**
+         * isInTarget(List, List, int)と同じ判定をする。
+         */
+        boolean inTarget(List<String> path, int depth) {
+            if (depth < rootPath.length) {
+                return false;
+            }
+            for (int a = 1; a < rootPath.length; a++) {
+                if (!matches(rootPath[a], rootMatches.get(a), path.get(a))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        boolean targetField(String name) {
+            return matches(fieldFilter, fieldMatches, name);
+        }
+        private static boolean matches(Pattern pattern, Map<String, Boolean> memo, String name) {
+            Boolean match = memo.get(name);
+            if (match == null) {
+                if (memo.size() >= MAX_NAMES) {
+                    memo.clear();
+                }
+                match = pattern.matcher(name).matches();
+                memo.put(name, match);
+            }
+            return match;
+        }
+    }
+
     public static boolean isInTarget(List<Pattern> rootPath, List<String> path, int depth) {
         if (depth < rootPath.size()) {
             return false;
@@ -0,0 +1,375 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * UTF-8のJSONをバイト列のまま読み込むストリーミングのトークナイザ。Json2csvの変換専用。
+ * 文字列と数値はエスケープを解除したUTF-8のバイト列として再利用可能なバッファ(value(), length())に格納し、Stringは必要な場合のみ作る。
+ * フィールド名はバイト列をキーにキャッシュし、同じ名前には同じStringのインスタンスを返す。
+ * 標準のJSONのみに対応する(コメントや引用符のない名前など、jsonicが許容する拡張には対応しない)。
+ */
+public class JsonTokenizer {
+
+    public enum Token {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NAME_CACHE_SIZE = 0x400;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[0x10000];
+    private int pos;
+    private int limit;
+    private long consumed;
+    private byte[] value = new byte[0x100];
+    private int length;
+    /** 各階層がオブジェクトであればtrue */
+    private boolean[] objects = new boolean[0x40];
+    private int depth;
+    private boolean expectName;
+    private final byte[][] nameBytes = new byte[NAME_CACHE_SIZE][];
+    private final String[] names = new String[NAME_CACHE_SIZE];
+    private int nameCount;
+
+    public JsonTokenizer(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return  次のトークン。入力の終端に達した場合はnull
+     */
+    public Token next() throws IOException {
+        while (true) {
+            int c = skipWhitespace();
+            if (c < 0) {
+                if (depth > 0) {
+                    throw error("unexpected end of input");
+                }
+                return null;
+            }
+            pos++;
+            switch (c) {
+            case '{':
+                push(true);
+                expectName = true;
+                return Token.START_OBJECT;
+            case '[':
+                push(false);
+                expectName = false;
+                return Token.START_ARRAY;
+            case '}':
+            case ']':
+                if (depth == 0 || objects[depth - 1] != (c == '}')) {
+                    throw error("unexpected '" + (char) c + "'");
+                }
+                depth--;
+                expectName = false;
+                return c == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+            case ',':
+                expectName = depth > 0 && objects[depth - 1];
+                break;
+            case ':':
+                break;
+            case '"':
+                readString();
+                if (expectName) {
+                    expectName = false;
+                    return Token.NAME;
+                }
+                return Token.STRING;
+            case 't':
+                expectLiteral("rue");
+                return Token.TRUE;
+            case 'f':
+                expectLiteral("alse");
+                return Token.FALSE;
+            case 'n':
+                expectLiteral("ull");
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    return Token.NUMBER;
+                }
+                throw error("unexpected character '" + (char) c + "'");
+            }
+        }
+    }
+
+    /**
+     * @return  直前のSTRING, NAME, NUMBERの値。返される配列は次回の呼び出しで再利用される。
+     */
+    public byte[] value() {
+        return value;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public String string() {
+        return new String(value, 0, length, UTF8);
+    }
+
+    /**
+     * @return  直前のNAMEの値。同じ名前には同じインスタンスを返す
+     */
+    public String name() {
+        int hash = 0;
+        for (int a = 0; a < length; a++) {
+            hash = 31 * hash + value[a];
+        }
+        int index = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        while (nameBytes[index] != null) {
+            byte[] b = nameBytes[index];
+            if (b.length == length && equals(b, value, length)) {
+                return names[index];
+            }
+            index = (index + 1) & (NAME_CACHE_SIZE - 1);
+        }
+        String name = string();
+        if (nameCount >= NAME_CACHE_SIZE * 3 / 4) {
+            // 名前の種類が多すぎる場合は作り直す
+            Arrays.fill(nameBytes, null);
+            Arrays.fill(names, null);
+            nameCount = 0;
+            return name;
+        }
+        nameBytes[index] = Arrays.copyOf(value, length);
+        names[index] = name;
+        nameCount++;
+        return name;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void push(boolean object) {
+        if (depth == objects.length) {
+            objects = Arrays.copyOf(objects, depth * 2);
+        }
+        objects[depth++] = object;
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            int c = buffer[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c & 0xFF;
+            }
+            pos++;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        do {
+            n = in.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    /**
+     * バッファの残りがnバイト以上になるまで読み込む。
+     * @return  入力の終端に達した場合はfalse
+     */
+    private boolean ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                consumed += pos;
+                limit -= pos;
+                pos = 0;
+            }
+            int r = in.read(buffer, limit, buffer.length - limit);
+            if (r < 0) {
+                return false;
+            }
+            limit += r;
+        }
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            throw error("unexpected end of input");
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    private void expectLiteral(String rest) throws IOException {
+        for (int a = 0; a < rest.length(); a++) {
+            if (read() != rest.charAt(a)) {
+                throw error("invalid literal");
+            }
+        }
+    }
+
+    private void readNumber(int first) throws IOException {
+        length = 0;
+        append((byte) first);
+        while (true) {
+            if (pos == limit && !fill()) {
+                return;
+            }
+            byte c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                append(c);
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void readString() throws IOException {
+        length = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw error("unterminated string");
+            }
+            // エスケープと終端以外はまとめてコピーする
+            int start = pos;
+            while (pos < limit && buffer[pos] != '"' && buffer[pos] != '\\') {
+                pos++;
+            }
+            if (pos > start) {
+                append(buffer, start, pos - start);
+            }
+            if (pos == limit) {
+                continue;
+            }
+            if (buffer[pos++] == '"') {
+                return;
+            }
+            int c = read();
+            switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                append((byte) c);
+                break;
+            case 'b':
+                append((byte) '\b');
+                break;
+            case 'f':
+                append((byte) '\f');
+                break;
+            case 'n':
+                append((byte) '\n');
+                break;
+            case 'r':
+                append((byte) '\r');
+                break;
+            case 't':
+                append((byte) '\t');
+                break;
+            case 'u':
+                readUnicode();
+                break;
+            default:
+                throw error("invalid escape '\\" + (char) c + "'");
+            }
+        }
+    }
+
+    private int readHex() throws IOException {
+        int n = 0;
+        for (int a = 0; a < 4; a++) {
+            int c = read();
+            int d = Character.digit(c, 16);
+            if (d < 0) {
+                throw error("invalid unicode escape");
+            }
+            n = n * 16 + d;
+        }
+        return n;
+    }
+
+    /**
+     * \\uXXXXをUTF-8で追加する。対になっていないサロゲートは文字列をUTF-8で出力した場合と同様に?とする。
+     */
+    private void readUnicode() throws IOException {
+        int c = readHex();
+        if (Character.isHighSurrogate((char) c) && ensure(6) && buffer[pos] == '\\' && buffer[pos + 1] == 'u') {
+            int mark = pos;
+            pos += 2;
+            int low = readHex();
+            if (Character.isLowSurrogate((char) low)) {
+                int cp = Character.toCodePoint((char) c, (char) low);
+                append((byte) (0xF0 | (cp >> 18)));
+                append((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                append((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                append((byte) (0x80 | (cp & 0x3F)));
+                return;
+            }
+            // 次のエスケープは別の文字として読み直す
+            pos = mark;
+        }
+        if (c < 0x80) {
+            append((byte) c);
+        } else if (c < 0x800) {
+            append((byte) (0xC0 | (c >> 6)));
+            append((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isSurrogate((char) c)) {
+            append((byte) '?');
+        } else {
+            append((byte) (0xE0 | (c >> 12)));
+            append((byte) (0x80 | ((c >> 6) & 0x3F)));
+            append((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    private void append(byte b) {
+        if (length == value.length) {
+            value = Arrays.copyOf(value, length * 2);
+        }
+        value[length++] = b;
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (length + len > value.length) {
+            value = Arrays.copyOf(value, Math.max(value.length * 2, length + len));
+        }
+        System.arraycopy(b, off, value, length, len);
+        length += len;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at byte " + (consumed + pos));
+    }
+}
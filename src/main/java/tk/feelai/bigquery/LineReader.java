@@ -0,0 +1,34 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * ダンプを1行ずつ読み込む入力。Mysqldump2csvは行の読み込みとバイト位置の取得のみを必要とする。
+ */
+interface LineReader extends Closeable {
+
+    /**
+     * @return  行末の\n, \r, \r\nを除いた1行。入力の終わりではnull
+     */
+    String readLine() throws IOException;
+
+    /**
+     * @return  次に読み込む行の先頭のバイト位置。数えていない場合は-1
+     */
+    long position();
+}
@@ -0,0 +1,388 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.arnx.jsonic.JSON;
+
+/**
+ * 変換とアップロードの計測値(カウンタ, ゲージ, ヒストグラム)をプロセス全体で集計し、定期的にファイルへ書き出す。
+ * 書き出し先は <prefix>.jsonl (1回の書き出しを1行のJSONとして追記)と <prefix>.prom (Prometheusのテキスト形式。毎回置き換える)。
+ * 計測値は名前とラベルの組で識別する。同じ組で取得すると同じインスタンスを返すため、頻繁に更新する箇所では取得したインスタンスを保持して使う。
+ */
+public class Metrics {
+
+    /** 処理時間(秒)のヒストグラムの区間 */
+    public static final double[] SECONDS_BUCKETS = { 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 1800 };
+    /** 書き出し間隔のデフォルト(ミリ秒) */
+    public static final long DEFAULT_INTERVAL = 10000;
+
+    private static final ConcurrentMap<String, Metric> METRICS = new ConcurrentHashMap<String, Metric>();
+    private static final Map<String, String> HELPS = new ConcurrentHashMap<String, String>();
+    private static Exporter exporter;
+
+    private Metrics() {
+    }
+
+    /**
+     * @param labels    ラベル名と値を交互に並べたもの
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(new Counter(name, labels), help);
+    }
+
+    public static Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) register(new Gauge(name, labels), help);
+    }
+
+    /**
+     * @param buckets   各区間の上限(昇順)。+Infは自動的に追加する
+     */
+    public static Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) register(new Histogram(name, labels, buckets), help);
+    }
+
+    private static Metric register(Metric metric, String help) {
+        Metric registered = METRICS.putIfAbsent(metric.key, metric);
+        if (registered == null) {
+            HELPS.put(metric.name, help);
+            return metric;
+        }
+        if (registered.getClass() != metric.getClass()) {
+            throw new IllegalArgumentException("metric type mismatch: " + metric.key);
+        }
+        return registered;
+    }
+
+    /**
+     * prefixのファイルへの定期的な書き出しを開始する。既に開始している場合は何もしない。
+     * @param interval  書き出し間隔(ミリ秒)
+     * @return  この呼び出しで開始した場合はtrue。呼び出し側はtrueの場合のみclose()する
+     */
+    public static synchronized boolean export(String prefix, long interval) {
+        if (exporter != null) {
+            return false;
+        }
+        exporter = new Exporter(prefix, interval);
+        exporter.start();
+        System.err.println("exporting metrics to " + prefix + ".jsonl and " + prefix + ".prom every " + interval / 1000 + " seconds");
+        return true;
+    }
+
+    /**
+     * 定期的な書き出しを止め、最後の計測値を書き出す。書き出しを開始していない場合は何もしない。
+     */
+    public static synchronized void close() throws IOException {
+        if (exporter == null) {
+            return;
+        }
+        exporter.interrupt();
+        try {
+            exporter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exporter.write();
+        exporter = null;
+    }
+
+    /**
+     * 計測値の共通部分。keyはPrometheusの形式で名前とラベルを連結したもの。
+     */
+    public abstract static class Metric {
+        final String name;
+        final String[] labels;
+        final String key;
+
+        Metric(String name, String[] labels) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException("labels must be name and value pairs: " + name);
+            }
+            this.name = name;
+            this.labels = labels;
+            key = name + labels(null);
+        }
+
+        /**
+         * @return  {a="1",b="2"}の形式。ラベルがなければ空文字列
+         */
+        String labels(String le) {
+            if (labels.length == 0 && le == null) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (int a = 0; a < labels.length; a += 2) {
+                if (a > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[a]).append("=\"").append(escape(labels[a + 1])).append('"');
+            }
+            if (le != null) {
+                sb.append(labels.length > 0 ? "," : "").append("le=\"").append(le).append('"');
+            }
+            return sb.append('}').toString();
+        }
+
+        abstract String type();
+        abstract void writePrometheus(PrintWriter out);
+        abstract void putValues(Map<String, Object> json);
+    }
+
+    /**
+     * 単調増加する値。
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String[] labels) {
+            super(name, labels);
+        }
+        public void inc() {
+            value.incrementAndGet();
+        }
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+        public long get() {
+            return value.get();
+        }
+        @Override
+        String type() {
+            return "counter";
+        }
+        @Override
+        void writePrometheus(PrintWriter out) {
+            out.println(key + " " + value.get());
+        }
+        @Override
+        void putValues(Map<String, Object> json) {
+            json.put("value", value.get());
+        }
+    }
+
+    /**
+     * 最後に設定した値。
+     */
+    public static class Gauge extends Metric {
+        private volatile double value;
+
+        Gauge(String name, String[] labels) {
+            super(name, labels);
+        }
+        public void set(double value) {
+            this.value = value;
+        }
+        public double get() {
+            return value;
+        }
+        @Override
+        String type() {
+            return "gauge";
+        }
+        @Override
+        void writePrometheus(PrintWriter out) {
+            out.println(key + " " + format(value));
+        }
+        @Override
+        void putValues(Map<String, Object> json) {
+            json.put("value", value);
+        }
+    }
+
+    /**
+     * 値の分布。区間毎の件数と合計を保持する。
+     */
+    public static class Histogram extends Metric {
+        private final double[] buckets;
+        private final long[] counts;
+        private long count;
+        private double sum;
+
+        Histogram(String name, String[] labels, double[] buckets) {
+            super(name, labels);
+            this.buckets = buckets.clone();
+            counts = new long[buckets.length + 1];
+        }
+        public synchronized void observe(double value) {
+            int a = 0;
+            while (a < buckets.length && value > buckets[a]) {
+                a++;
+            }
+            counts[a]++;
+            count++;
+            sum += value;
+        }
+        /**
+         * System.nanoTime()で計った経過時間を秒に換算して記録する。
+         */
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+        @Override
+        String type() {
+            return "histogram";
+        }
+        @Override
+        synchronized void writePrometheus(PrintWriter out) {
+            long cumulative = 0;
+            for (int a = 0; a < buckets.length; a++) {
+                cumulative += counts[a];
+                out.println(name + "_bucket" + labels(format(buckets[a])) + " " + cumulative);
+            }
+            out.println(name + "_bucket" + labels("+Inf") + " " + count);
+            out.println(name + "_sum" + labels(null) + " " + format(sum));
+            out.println(name + "_count" + labels(null) + " " + count);
+        }
+        @Override
+        synchronized void putValues(Map<String, Object> json) {
+            json.put("count", count);
+            json.put("sum", sum);
+            Map<String, Long> bucketCounts = new LinkedHashMap<String, Long>();
+            long cumulative = 0;
+            for (int a = 0; a < buckets.length; a++) {
+                cumulative += counts[a];
+                bucketCounts.put(format(buckets[a]), cumulative);
+            }
+            bucketCounts.put("+Inf", count);
+            json.put("buckets", bucketCounts);
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * 一定間隔で全ての計測値を書き出すスレッド。
+     */
+    private static class Exporter extends Thread {
+        private final File jsonLines;
+        private final File prometheus;
+        private final long interval;
+
+        Exporter(String prefix, long interval) {
+            super("metrics-exporter");
+            setDaemon(true);
+            jsonLines = new File(prefix + ".jsonl");
+            prometheus = new File(prefix + ".prom");
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    write();
+                } catch (IOException e) {
+                    System.err.println("failed to export metrics: " + e);
+                }
+            }
+        }
+
+        synchronized void write() throws IOException {
+            List<Metric> metrics = new ArrayList<Metric>(METRICS.values());
+            // Prometheusの形式では同じ名前の計測値を連続して書く必要がある
+            Collections.sort(metrics, new Comparator<Metric>() {
+                @Override
+                public int compare(Metric o1, Metric o2) {
+                    int c = o1.name.compareTo(o2.name);
+                    return c != 0 ? c : o1.key.compareTo(o2.key);
+                }
+            });
+            writeJsonLine(metrics);
+            writePrometheus(metrics);
+        }
+
+        private void writeJsonLine(List<Metric> metrics) throws IOException {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            Map<String, Object> line = new LinkedHashMap<String, Object>();
+            line.put("time", format.format(new Date()));
+            List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+            for (Metric m : metrics) {
+                Map<String, Object> value = new LinkedHashMap<String, Object>();
+                value.put("name", m.name);
+                value.put("type", m.type());
+                Map<String, String> labels = new LinkedHashMap<String, String>();
+                for (int a = 0; a < m.labels.length; a += 2) {
+                    labels.put(m.labels[a], m.labels[a + 1]);
+                }
+                value.put("labels", labels);
+                m.putValues(value);
+                values.add(value);
+            }
+            line.put("metrics", values);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(jsonLines, true), "UTF-8"));
+            try {
+                out.println(JSON.encode(line));
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * 読み込み側が書きかけのファイルを読まないように、一時ファイルに書き込んでから置き換える。
+         */
+        private void writePrometheus(List<Metric> metrics) throws IOException {
+            File tmp = new File(prometheus.getPath() + ".tmp");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                String prevName = null;
+                for (Metric m : metrics) {
+                    if (!m.name.equals(prevName)) {
+                        out.println("# HELP " + m.name + " " + HELPS.get(m.name));
+                        out.println("# TYPE " + m.name + " " + m.type());
+                        prevName = m.name;
+                    }
+                    m.writePrometheus(out);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(prometheus)) {
+                throw new IOException("failed to rename: " + tmp);
+            }
+        }
+    }
+}
@@ -14,65 +14,211 @@ package tk.feelai.bigquery;
  * the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 public class Mysqldump2csv {
 
     private static void usage() {
         System.err.println("Usage:");
-        System.err.println("java tk.feelai.bigquery.Mysqldump2csv outDir [-z] [dumpSql1 [dumpSql2 [...]]]");
+        System.err.println("java tk.feelai.bigquery.Mysqldump2csv outDir [-z | -gz | -avro] [-threads N] [-chunk-size BYTES] [-chunk-rows N] [-incremental KEYS] [-mmap] [-resume] [-metrics PREFIX] [dumpSql1 [dumpSql2 [...]]]");
+        System.err.println("  dumpSql may be compressed by gzip (*.gz), zstd (*.zst) or zip (*.zip, all entries are read in order).");
+        System.err.println("  Please specify -z or -gz option if you need to compress csv files into zip or gzip (compressed in parallel) format.");
+        System.err.println("  Please specify -avro option if you need to output Avro container files (deflate) instead of csv files.");
+        System.err.println("  Please specify -chunk-size option if you need to change the size of each csv file before compression. (default=134217728)");
+        System.err.println("  Please specify -chunk-rows option if you need to limit the number of rows in each csv file. (default=unlimited)");
+        System.err.println("  Please specify -threads option if you need to parse INSERT statements in parallel. (default=1)");
+        System.err.println("  Please specify -incremental option if you need to output only the rows whose key column exceeds the value saved in the previous run. KEYS is comma separated column or table=column. ex. id,orders=updated_at");
+        System.err.println("  The saved value takes effect after CsvUploader loads the files. Until then the files are kept and the next run appends only the rows after them.");
+        System.err.println("  Please specify -mmap option if you need to split each uncompressed UTF-8 dump file into ranges and convert them in parallel with -threads. (csv only)");
+        System.err.println("  Please specify -resume option if you need to restart the conversion from the checkpoint in outDir. (dump files only)");
+        System.err.println("  Please specify -metrics option if you need to export rows, bytes and parse/write times per table into PREFIX.jsonl and PREFIX.prom every 10 seconds.");
     }
     public static void main(String[] args) throws Exception {
+        run(args, null);
+    }
+    /**
+     * main()と同じ引数で変換を行い、書き出したファイルをlistenerに通知する。
+     */
+    public static void run(String[] args, ChunkListener listener) throws Exception {
         if (args.length < 1) {
             usage();
             return;
         }
         File outDir = new File(args[0]);
         Mysqldump2csv mysqldump2Csv = new Mysqldump2csv(outDir);
+        mysqldump2Csv.chunkListener = listener;
         int index = 1;
-        boolean useZip;
-        if (args.length > index && "-z".equalsIgnoreCase(args[index])) {
-            useZip = true;
-            index++;
-        } else {
-            useZip = false;
+        String compressSuffix = "";
+        boolean resume = false, mmap = false;
+        String metricsPrefix = null;
+        while (args.length > index) {
+            if ("-z".equalsIgnoreCase(args[index])) {
+                compressSuffix = ZIP_SUFFIX;
+                index++;
+            } else if ("-gz".equalsIgnoreCase(args[index])) {
+                compressSuffix = GZIP_SUFFIX;
+                index++;
+            } else if ("-avro".equalsIgnoreCase(args[index])) {
+                mysqldump2Csv.useAvro = true;
+                index++;
+            } else if ("-threads".equalsIgnoreCase(args[index])) {
+                mysqldump2Csv.threads = Integer.parseInt(args[index + 1]);
+                index += 2;
+            } else if ("-chunk-size".equalsIgnoreCase(args[index])) {
+                mysqldump2Csv.maxCsvLength = Long.parseLong(args[index + 1]);
+                index += 2;
+            } else if ("-chunk-rows".equalsIgnoreCase(args[index])) {
+                mysqldump2Csv.maxCsvRows = Long.parseLong(args[index + 1]);
+                index += 2;
+            } else if ("-incremental".equalsIgnoreCase(args[index])) {
+                for (String key : args[index + 1].split(",")) {
+                    int eq = key.indexOf('=');
+                    mysqldump2Csv.incrementalKeys.put(eq < 0 ? "*" : key.substring(0, eq), key.substring(eq + 1));
+                }
+                index += 2;
+            } else if ("-mmap".equalsIgnoreCase(args[index])) {
+                mmap = true;
+                index++;
+            } else if ("-resume".equalsIgnoreCase(args[index])) {
+                resume = true;
+                index++;
+            } else if ("-metrics".equalsIgnoreCase(args[index])) {
+                metricsPrefix = args[index + 1];
+                index += 2;
+            } else {
+                break;
+            }
+        }
+        boolean exporting = metricsPrefix != null && Metrics.export(metricsPrefix, Metrics.DEFAULT_INTERVAL);
+        try {
+            run(mysqldump2Csv, args, index, compressSuffix, resume, mmap);
+        } finally {
+            if (exporting) {
+                Metrics.close();
+            }
         }
-        BufferedReader in;
+    }
+
+    /**
+     * args[index]以降のダンプファイル(なければ標準入力)を変換する。
+     */
+    private static void run(Mysqldump2csv mysqldump2Csv, String[] args, int index, String compressSuffix, boolean resume, boolean mmap) throws Exception {
+        File outDir = mysqldump2Csv.outDir;
+        LineReader in;
         if (args.length == index) {
-            in = new BufferedReader(new InputStreamReader(System.in));
+            in = new OffsetLineReader(System.in, Charset.defaultCharset());
             try {
-                mysqldump2Csv.conv(in, useZip);
+                mysqldump2Csv.conv(in, compressSuffix);
             } finally {
                 in.close();
             }
+            mysqldump2Csv.saveWatermarks();
         } else {
-            for (int a = index; a < args.length; a++) {
+            File checkpointFile = new File(outDir, CHECKPOINT_FILE_NAME);
+            Checkpoint checkpoint = null;
+            int first = index;
+            if (resume) {
+                if (checkpointFile.exists()) {
+                    checkpoint = Checkpoint.load(checkpointFile);
+                    first = Arrays.asList(args).subList(index, args.length).indexOf(checkpoint.input) + index;
+                    if (first < index) {
+                        throw new IllegalArgumentException("input of checkpoint not found: " + checkpoint.input);
+                    }
+                    System.err.println("resuming: " + checkpoint);
+                } else {
+                    System.err.println("checkpoint not found, starting from the beginning: " + checkpointFile);
+                }
+            }
+            for (int a = first; a < args.length; a++) {
                 String fileName = args[a];
-                if (fileName.endsWith(".zip")) {
-                    in = new BufferedReader(new InputStreamReader(new ZipInputStream(new FileInputStream(fileName))));
+                long offset = 0;
+                if (checkpoint != null && a == first) {
+                    offset = checkpoint.offset;
+                    mysqldump2Csv.resume(checkpoint);
+                }
+                mysqldump2Csv.checkpointFile = checkpointFile;
+                mysqldump2Csv.input = fileName;
+                if (mmap && !InputFiles.isCompressed(fileName)) {
+                    mysqldump2Csv.convMapped(new File(fileName), offset, compressSuffix);
                 } else {
-                    in = new BufferedReader(new FileReader(fileName));
+                    in = openDump(fileName, offset);
+                    try {
+                        mysqldump2Csv.conv(in, compressSuffix);
+                    } finally {
+                        in.close();
+                    }
                 }
-                try {
-                    mysqldump2Csv.conv(in, useZip);
-                } finally {
-                    in.close();
+                if (a + 1 < args.length) {
+                    new Checkpoint(args[a + 1], 0, 0, null, 0, null).save(checkpointFile);
                 }
             }
+            mysqldump2Csv.saveWatermarks();
+            checkpointFile.delete();
+        }
+    }
+
+    /**
+     * ダンプファイルをoffsetのバイト位置から読み込む。圧縮ファイル(.gz, .zst, .zip)は先読みスレッドで展開し、展開後のoffsetまで読み飛ばす。
+     */
+    static OffsetLineReader openDump(String fileName, long offset) throws IOException {
+        InputStream in = InputFiles.open(fileName);
+        try {
+            if (in instanceof FileInputStream) {
+                ((FileInputStream) in).getChannel().position(offset);
+            } else {
+                InputFiles.skipFully(in, offset, fileName);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
         }
+        return new OffsetLineReader(in, Charset.defaultCharset(), offset);
     }
     
     public Mysqldump2csv(File outDir) {
@@ -83,261 +229,2125 @@ public class Mysqldump2csv {
     }
 
     final private File outDir; 
+    /**
+     * csvファイル1つあたりのバイト数(圧縮前)の上限。レコードの途中では分割しないため1レコードがこれを超える場合は超過を許容する。
+     */
     public long maxCsvLength = 0x8000000;
+    /**
+     * csvファイル1つあたりの行数の上限。
+     */
+    public long maxCsvRows = Long.MAX_VALUE;
     public Pattern createTable = Pattern.compile("^CREATE TABLE `(.+)` \\($");
     public Pattern insertInto = Pattern.compile("^INSERT INTO `(.+)` VALUES (.+)$");
     public Pattern allowPattern = Pattern.compile(".+");
     public Pattern skipPattern = Pattern.compile("^$");
+    /**
+     * INSERT文を解析するスレッド数。2以上を指定するとconv()が並列モードで動作する。
+     */
+    public int threads = 1;
+    /**
+     * trueの場合はcsvの代わりにAvroのobject container形式で出力する。圧縮はAvroのdeflateで行うためcompressSuffixは無視する。
+     */
+    public boolean useAvro = false;
+    /**
+     * nullでなければschemaファイルとcsvファイルを閉じる度に通知する。
+     */
+    public ChunkListener chunkListener;
+    /**
+     * 差分出力するテーブル名とキー列名。"*"は全テーブルに適用する。キー列は値が単調増加する列(AUTO_INCREMENTのidや更新日時)とする。
+     */
+    public Map<String, String> incrementalKeys = new HashMap<String, String>();
+    private final Map<String, HighWatermark> watermarks = new ConcurrentHashMap<String, HighWatermark>();
+    /**
+     * 未アップロードのチャンクを残したテーブルと、続きのチャンク番号。
+     */
+    private final Map<String, Integer> keptChunks = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Boolean> skipTables = new HashMap<String, Boolean>();
+    /**
+     * convMapped()で1つのワーカーに割り当てる範囲のバイト数の目安。範囲はINSERT文の行頭に揃えるため実際の大きさは前後する。
+     */
+    public long mmapRangeSize = 0x4000000;
+    /**
+     * nullでなければチャンクを閉じる度にチェックポイントを書き込む。
+     */
+    private File checkpointFile;
+    private String input;
+    private String resumeTable;
+    private int resumeIndex;
+    private int resumeRows;
 
     public boolean skip(String tableName) {
         return !allowPattern.matcher(tableName).matches() || skipPattern.matcher(tableName).matches();
     }
 
     public void conv(BufferedReader in, boolean useZip) throws IOException {
+        conv(in, useZip ? ZIP_SUFFIX : "");
+    }
+
+    /**
+     * @param compressSuffix    ""(無圧縮), ZIP_SUFFIX, GZIP_SUFFIXのいずれか
+     */
+    public void conv(BufferedReader in, String compressSuffix) throws IOException {
+        conv(lines(in), compressSuffix);
+    }
+
+    void conv(LineReader in, String compressSuffix) throws IOException {
+        Map<String, Long> skippedBytes = new LinkedHashMap<String, Long>();
+        boolean completed = false;
         try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                Matcher createTableMatcher = createTable.matcher(line);
-                if (createTableMatcher.matches()) {
-                    saveSchema(createTableMatcher.group(1), in);
+            if (threads > 1) {
+                convParallel(in, compressSuffix, skippedBytes);
+            } else {
+                readStatements(in, sequentialHandler(compressSuffix), skippedBytes);
+            }
+            completed = true;
+        } finally {
+            finish(completed);
+        }
+        reportSkipped(skippedBytes);
+    }
+
+    /**
+     * 最後のファイルを閉じる。途中で失敗した場合は書きかけのファイルを通知しない。
+     */
+    private void finish(boolean completed) throws IOException {
+        try {
+            closeRecordWriter(completed);
+        } finally {
+            if (compressor != null) {
+                compressor.shutdown();
+                compressor = null;
+            }
+        }
+    }
+
+    private InsertHandler sequentialHandler(final String compressSuffix) {
+        return new InsertHandler() {
+            @Override
+            public boolean insert(String tableName, String line, int valuesOffset, long lineOffset) throws IOException {
+                statementOffset = lineOffset;
+                saveRecords(tableName, line, valuesOffset, compressSuffix);
+                return true;
+            }
+        };
+    }
+
+    private static final String CREATE_TABLE_PREFIX = "CREATE TABLE `";
+    private static final String CREATE_TABLE_SUFFIX = "` (";
+    private static final String INSERT_INTO_PREFIX = "INSERT INTO `";
+    private static final String INSERT_INTO_VALUES = "` VALUES ";
+
+    /**
+     * mysqldumpの標準的な形式の行であれば、行頭だけを見てテーブル名を取り出す。該当しない場合はnullを返す。
+     */
+    static String createTableName(String line) {
+        if (!line.startsWith(CREATE_TABLE_PREFIX) || !line.endsWith(CREATE_TABLE_SUFFIX)) {
+            return null;
+        }
+        int end = line.length() - CREATE_TABLE_SUFFIX.length();
+        if (end <= CREATE_TABLE_PREFIX.length() || line.indexOf('`', CREATE_TABLE_PREFIX.length()) != end) {
+            return null;
+        }
+        return line.substring(CREATE_TABLE_PREFIX.length(), end);
+    }
+
+    /**
+     * @see #createTableName(String)
+     */
+    static String insertTableName(String line) {
+        if (!line.startsWith(INSERT_INTO_PREFIX)) {
+            return null;
+        }
+        int end = line.indexOf('`', INSERT_INTO_PREFIX.length());
+        if (end <= INSERT_INTO_PREFIX.length() || !line.startsWith(INSERT_INTO_VALUES, end) || end + INSERT_INTO_VALUES.length() == line.length()) {
+            return null;
+        }
+        return line.substring(INSERT_INTO_PREFIX.length(), end);
+    }
+
+    private interface InsertHandler {
+        /**
+         * @return 読み込みを中断する場合はfalse
+         */
+        boolean insert(String tableName, String line, int valuesOffset, long lineOffset) throws IOException;
+    }
+
+    /**
+     * 行頭の文字列で文の種類を判定し、CREATE TABLE文はsaveSchema()に、INSERT文はhandlerに渡す。
+     * 判定できない行に限ってcreateTableとinsertIntoの正規表現を試す。
+     * @param skippedBytes  対象外のテーブルのINSERT文のバイト数をテーブル毎に加算する
+     */
+    private void readStatements(LineReader in, InsertHandler handler, Map<String, Long> skippedBytes) throws IOException {
+        String line;
+        long lineOffset = in.position();
+        for (; (line = in.readLine()) != null; lineOffset = in.position()) {
+            String tableName = insertTableName(line);
+            int valuesOffset;
+            if (tableName != null) {
+                valuesOffset = INSERT_INTO_PREFIX.length() + tableName.length() + INSERT_INTO_VALUES.length();
+            } else {
+                tableName = createTableName(line);
+                if (tableName == null) {
+                    Matcher createTableMatcher = createTable.matcher(line);
+                    if (createTableMatcher.matches()) {
+                        tableName = createTableMatcher.group(1);
+                    }
+                }
+                if (tableName != null) {
+                    saveSchema(tableName, in);
                     continue;
                 }
                 Matcher insertIntoMatcher = insertInto.matcher(line);
-                if (insertIntoMatcher.matches()) {
-                    saveRecords(insertIntoMatcher.group(1), insertIntoMatcher.group(2), useZip);
+                if (!insertIntoMatcher.matches()) {
                     continue;
                 }
+                tableName = insertIntoMatcher.group(1);
+                valuesOffset = insertIntoMatcher.start(2);
             }
-        } finally {
-            if (outRecords != null) {
-                outRecords.close();
-                outRecords = null;
+            if (skipTable(tableName)) {
+                // 対象外のテーブルは解析せずに読み飛ばす。バイト数は読み込み位置の差で数える
+                skipped(skippedBytes, tableName, lineOffset >= 0 ? in.position() - lineOffset : -1);
+                continue;
+            }
+            if (!handler.insert(tableName, line, valuesOffset, lineOffset)) {
+                return;
             }
         }
     }
 
-    public Pattern field = Pattern.compile("^  `(.+)` ([^,A-Z]+)( .+|,)$");
-    public Pattern end = Pattern.compile("^\\).+;$");
-    // BOOLEANはスキーマとフィールドの突き合わせが必要なのであえてtinyintをintegerに含めている
-    public Pattern integerPattern = Pattern.compile("^(int|bigint|tinyint).+$");
-    public Pattern floatPattern = Pattern.compile("^(float|double).+$");
-    public Pattern timestampPattern = Pattern.compile("^(date|time).+$");
-    public static final String SCHEMA_FILE_NAME_FORMAT = "%s.schema";
+    /**
+     * @param bytes 読み飛ばしたバイト数。分からない場合は-1とし、そのテーブルの合計も不明とする
+     */
+    private static void skipped(Map<String, Long> skippedBytes, String tableName, long bytes) {
+        Long total = skippedBytes.get(tableName);
+        if (total == null) {
+            total = 0L;
+            System.err.println("skipping records: " + tableName + " (" + new Date() + ")");
+        }
+        skippedBytes.put(tableName, total < 0 || bytes < 0 ? -1 : total + bytes);
+    }
 
-    public void saveSchema(String tableName, BufferedReader in) throws IOException {
-        PrintWriter out;
-        if (skip(tableName)) {
-            out = DummyWriter.create();
-            System.err.println("skipping schema: " + tableName + " (" + new Date() + ")");
-        } else {
-            out = new PrintWriter(new File(outDir, String.format(SCHEMA_FILE_NAME_FORMAT, tableName)));
-            System.err.println("retrieving schema: " + tableName + " (" + new Date() + ")");
+    private static void reportSkipped(Map<String, Long> skippedBytes) {
+        for (Map.Entry<String, Long> e : skippedBytes.entrySet()) {
+            if (e.getValue() < 0) {
+                System.err.println("skipped records: " + e.getKey());
+            } else {
+                System.err.println(String.format("skipped records: %s (%,d bytes)", e.getKey(), e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * バイト位置を数えないBufferedReaderをLineReaderとして扱う。
+     */
+    private static LineReader lines(final BufferedReader in) {
+        return new LineReader() {
+            @Override
+            public String readLine() throws IOException {
+                return in.readLine();
+            }
+            @Override
+            public long position() {
+                return -1;
+            }
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * skip()の判定結果をテーブル毎にキャッシュする。読み込みスレッドからのみ呼び出す。
+     */
+    private boolean skipTable(String tableName) {
+        Boolean result = skipTables.get(tableName);
+        if (result == null) {
+            result = skip(tableName);
+            skipTables.put(tableName, result);
+        }
+        return result;
+    }
+
+    private static final Future<ConvertedRecords> END_OF_RECORDS = new FutureTask<ConvertedRecords>(new Callable<ConvertedRecords>() {
+        @Override
+        public ConvertedRecords call() {
+            return null;
         }
+    });
+
+    /**
+     * 読み込みスレッド(呼び出し元)がINSERT文をパーサーのスレッドプールに渡し、書き込みスレッドが読み込み順に結果をファイルへ書き出す。
+     * 出力ファイルとチャンクの番号は逐次処理の場合と同一になる。
+     */
+    private void convParallel(LineReader in, String compressSuffix, Map<String, Long> skippedBytes) throws IOException {
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final BlockingQueue<Future<ConvertedRecords>> queue = new ArrayBlockingQueue<Future<ConvertedRecords>>(threads * 4);
+        final RecordWriterThread writer = new RecordWriterThread(queue, compressSuffix);
+        writer.start();
         try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (end.matcher(line).matches()) {
-                    break;
+            readStatements(in, new InsertHandler() {
+                @Override
+                public boolean insert(final String tableName, final String line, final int valuesOffset, final long lineOffset) throws IOException {
+                    put(queue, workers.submit(new Callable<ConvertedRecords>() {
+                        @Override
+                        public ConvertedRecords call() {
+                            return convRecords(tableName, line, valuesOffset, lineOffset);
+                        }
+                    }));
+                    return writer.failure == null;
                 }
-                Matcher f = field.matcher(line);
-                if (!f.matches()) {
-                    continue;
+            }, skippedBytes);
+        } finally {
+            put(queue, END_OF_RECORDS);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+        Throwable failure = writer.failure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    private static void put(BlockingQueue<Future<ConvertedRecords>> queue, Future<ConvertedRecords> future) throws InterruptedIOException {
+        try {
+            queue.put(future);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class ConvertedRecords {
+        final String tableName;
+        final byte[] records;
+        final int rows;
+        /**
+         * Avroの場合の各レコードの終端位置。csvの場合はnull。
+         */
+        final int[] rowEnds;
+        final long lineOffset;
+        ConvertedRecords(String tableName, byte[] records, int rows, int[] rowEnds, long lineOffset) {
+            this.tableName = tableName;
+            this.records = records;
+            this.rows = rows;
+            this.rowEnds = rowEnds;
+            this.lineOffset = lineOffset;
+        }
+    }
+
+    /**
+     * キューに積まれた変換結果を順番に取り出してwriteRecords()に書き込む。
+     * 失敗した場合も読み込みスレッドがブロックしないよう終端までキューを読み捨てる。最後のファイルはconv()が閉じる。
+     */
+    private class RecordWriterThread extends Thread {
+        private final BlockingQueue<Future<ConvertedRecords>> queue;
+        private final String compressSuffix;
+        volatile Throwable failure;
+        RecordWriterThread(BlockingQueue<Future<ConvertedRecords>> queue, String compressSuffix) {
+            super("Mysqldump2csv-writer");
+            this.queue = queue;
+            this.compressSuffix = compressSuffix;
+        }
+        @Override
+        public void run() {
+            try {
+                Future<ConvertedRecords> future;
+                while ((future = queue.take()) != END_OF_RECORDS) {
+                    if (failure != null) {
+                        future.cancel(true);
+                        continue;
+                    }
+                    try {
+                        ConvertedRecords r = future.get();
+                        statementOffset = r.lineOffset;
+                        if (r.rowEnds != null) {
+                            writeAvroRecords(r.tableName, r.records, r.rowEnds, r.rows);
+                        } else {
+                            writeRecords(r.tableName, r.records, r.records.length, r.rows, compressSuffix);
+                        }
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
                 }
-                String title = f.group(1);
-                String type;
-                if (integerPattern.matcher(f.group(2)).matches()) {
-                    type = "INTEGER";
-                } else if (floatPattern.matcher(f.group(2)).matches()) {
-                    type = "FLOAT";
-                } else if (timestampPattern.matcher(f.group(2)).matches()) {
-                    type = "TIMESTAMP";
-                } else {
-                    type = "STRING";
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] INSERT_INTO_PREFIX_BYTES = INSERT_INTO_PREFIX.getBytes(UTF8);
+    private static final byte[] INSERT_INTO_VALUES_BYTES = INSERT_INTO_VALUES.getBytes(UTF8);
+
+    /**
+     * 無圧縮のダンプファイルをメモリマップし、INSERT文の行頭に揃えた範囲毎にワーカースレッドでUTF-8のバイト列のままcsvに変換する。
+     * 変換結果は範囲の順にwriteRecords()に書き込むため、出力ファイルとチャンクの番号は逐次処理の場合と同一になる。
+     * INSERT文以外の行(CREATE TABLE文など)は範囲毎にまとめて書き込み側でreadStatements()に渡す。
+     * 入力と出力はプラットフォームの文字コードに関係なくUTF-8として扱う。Avroと差分出力には対応しない。
+     * @param offset    読み込みを開始するINSERT文の行頭の位置(チェックポイントから再開する場合)
+     */
+    public void convMapped(File file, long offset, String compressSuffix) throws IOException {
+        if (useAvro || !incrementalKeys.isEmpty()) {
+            throw new IllegalArgumentException("-mmap supports neither -avro nor -incremental");
+        }
+        if (!UTF8.equals(Charset.defaultCharset())) {
+            System.err.println("warning: -mmap reads and writes UTF-8 regardless of the platform charset " + Charset.defaultCharset());
+        }
+        FileInputStream in = new FileInputStream(file);
+        final FileChannel channel = in.getChannel();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Queue<Future<MappedRange>> pending = new ArrayDeque<Future<MappedRange>>();
+        Map<String, Long> skippedBytes = new LinkedHashMap<String, Long>();
+        InsertHandler handler = sequentialHandler(compressSuffix);
+        boolean completed = false;
+        try {
+            final long size = channel.size();
+            long start = offset;
+            while (start < size || !pending.isEmpty()) {
+                while (start < size && pending.size() < threads * 2) {
+                    final long begin = start, end = nextInsert(channel, Math.min(size, start + mmapRangeSize), size);
+                    if (end - begin > Integer.MAX_VALUE) {
+                        throw new IOException(String.format("no INSERT statement found in %,d bytes from %,d", end - begin, begin));
+                    }
+                    pending.add(workers.submit(new Callable<MappedRange>() {
+                        @Override
+                        public MappedRange call() throws IOException {
+                            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, begin, end - begin);
+                            // バイト単位のアクセスを速くするためにヒープにまとめてコピーしてから変換する
+                            byte[] range = new byte[mapped.limit()];
+                            mapped.get(range);
+                            return convRange(range, begin);
+                        }
+                    }));
+                    start = end;
                 }
-                out.println(String.format("%s\t%s", title, type));
+                writeRange(get(pending.poll()), handler, skippedBytes, compressSuffix);
             }
+            completed = true;
         } finally {
-            out.close();
+            workers.shutdownNow();
+            try {
+                finish(completed);
+            } finally {
+                in.close();
+            }
         }
+        reportSkipped(skippedBytes);
     }
 
-    public void saveRecords(String tableName, String line, boolean useZip) throws IOException {
-        PrintWriter out = getRecordWriter(tableName, line.length(), useZip);
-        boolean inRecord = false, inQuote = false, inEscape = false, beginning = false, firstRecrod = true;
-        int pos = 0, fieldMax = 1, fieldCount = 1;
-        while (pos < line.length()) {
-            char c = line.charAt(pos++);
-            if (inEscape) {
-                inEscape = false;
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return  from以降で最初の"INSERT INTO `"で始まる行の先頭の位置。見つからない場合はsize
+     */
+    static long nextInsert(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(0x10000);
+        byte[] prefix = new byte[INSERT_INTO_PREFIX_BYTES.length];
+        long pos = from == 0 ? 0 : from - 1;
+        boolean lineStart = from == 0;
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int a = 0; a < n; a++) {
+                if (lineStart && pos + a >= from) {
+                    ByteBuffer p = ByteBuffer.wrap(prefix);
+                    while (p.hasRemaining() && channel.read(p, pos + a + p.position()) > 0) {
+                    }
+                    if (!p.hasRemaining() && Arrays.equals(prefix, INSERT_INTO_PREFIX_BYTES)) {
+                        return pos + a;
+                    }
+                }
+                lineStart = buffer.get(a) == '\n';
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * ワーカースレッドで範囲内の行を順に変換する。対象外のテーブルのINSERT文は変換せずに長さだけを数える。
+     */
+    private MappedRange convRange(byte[] buffer, long base) {
+        MappedRange out = new MappedRange(buffer, base);
+        Map<String, Boolean> skipTables = new HashMap<String, Boolean>();
+        final int limit = buffer.length;
+        int pos = 0, textStart = -1;
+        while (pos < limit) {
+            int lineEnd = pos;
+            while (lineEnd < limit && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd < limit ? lineEnd + 1 : limit;
+            if (lineEnd > pos && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            String tableName = insertTableName(buffer, pos, lineEnd);
+            if (tableName == null) {
+                if (textStart < 0) {
+                    textStart = pos;
+                }
+                pos = next;
+                continue;
+            }
+            if (textStart >= 0) {
+                out.addText(textStart, pos);
+                textStart = -1;
+            }
+            Boolean skip = skipTables.get(tableName);
+            if (skip == null) {
+                skip = skip(tableName);
+                skipTables.put(tableName, skip);
+            }
+            if (skip) {
+                out.addSkipped(tableName, next - pos);
+            } else {
+                int valuesOffset = pos + INSERT_INTO_PREFIX_BYTES.length;
+                while (buffer[valuesOffset] != '`') {
+                    valuesOffset++;
+                }
+                valuesOffset += INSERT_INTO_VALUES_BYTES.length;
+                int begin = out.length;
+                long start = System.nanoTime();
+                int rows = convRecords(buffer, pos, valuesOffset, lineEnd, out);
+                metrics(tableName).parsed(start);
+                out.addRecords(tableName, begin, rows, base + pos);
+            }
+            pos = next;
+        }
+        if (textStart >= 0) {
+            out.addText(textStart, limit);
+        }
+        return out;
+    }
+
+    /**
+     * insertTableName(String)のバイト列版。
+     */
+    private static String insertTableName(byte[] line, int begin, int end) {
+        int nameBegin = begin + INSERT_INTO_PREFIX_BYTES.length;
+        if (end <= nameBegin) {
+            return null;
+        }
+        for (int a = 0; a < INSERT_INTO_PREFIX_BYTES.length; a++) {
+            if (line[begin + a] != INSERT_INTO_PREFIX_BYTES[a]) {
+                return null;
+            }
+        }
+        int nameEnd = nameBegin;
+        while (nameEnd < end && line[nameEnd] != '`') {
+            nameEnd++;
+        }
+        if (nameEnd == nameBegin || nameEnd + INSERT_INTO_VALUES_BYTES.length >= end) {
+            return null;
+        }
+        for (int a = 0; a < INSERT_INTO_VALUES_BYTES.length; a++) {
+            if (line[nameEnd + a] != INSERT_INTO_VALUES_BYTES[a]) {
+                return null;
+            }
+        }
+        return new String(line, nameBegin, nameEnd - nameBegin, UTF8);
+    }
+
+    /**
+     * convRecords(String, int, RecordBuffer)のバイト列版。変換規則は同一で、UTF-8のバイト列をそのままコピーする。
+     * @param lineStart エラーメッセージに含める行の先頭
+     * @return  変換した行数
+     */
+    static int convRecords(byte[] line, int lineStart, int valuesOffset, int length, MappedRange out) {
+        boolean inRecord = false, inQuote = false, beginning = false, firstRecrod = true;
+        int pos = valuesOffset, copyFrom = valuesOffset, fieldMax = 1, fieldCount = 1, rows = 0;
+        while (pos < length) {
+            byte c = line[pos++];
+            if (inQuote) {
+                switch (c) {
+                case '\'':
+                    out.append(copyFrom, pos - 1).append((byte) '"');
+                    inQuote = false;
+                    break;
+                case '"':
+                    out.append(copyFrom, pos - 1).append((byte) ' ');
+                    break;
+                case '\\':
+                    out.append(copyFrom, pos - 1).append((byte) ' ');
+                    // エスケープされた文字がマルチバイトの場合は後続バイトも読み飛ばす
+                    pos++;
+                    while (pos < length && (line[pos] & 0xC0) == 0x80) {
+                        pos++;
+                    }
+                    break;
+                default:
+                    continue;
+                }
+                copyFrom = pos;
                 continue;
             }
             switch (c) {
             case '(':
-                if (inQuote) {
-                    out.print(c);
-                    beginning = false;
-                } else if (inRecord) {
-                    throw new IllegalStateException("nested '(': " + line);
-                } else {
-                    inRecord = true;
-                    beginning = true;
-                    fieldCount = 1;
+                if (inRecord) {
+                    throw new IllegalStateException("nested '(': " + text(line, lineStart, length));
                 }
+                out.append(copyFrom, pos - 1);
+                inRecord = true;
+                beginning = true;
+                fieldCount = 1;
                 break;
             case ')':
-                if (inQuote) {
-                    out.print(c);
-                } else if (!inRecord) {
-                    throw new IllegalStateException("not corresponding ')': " + line);
-                } else {
-                    out.println();
-                    inRecord = false;
-                    firstRecrod = false;
+                if (!inRecord) {
+                    throw new IllegalStateException("not corresponding ')': " + text(line, lineStart, length));
                 }
+                out.append(copyFrom, pos - 1).newLine();
+                rows++;
+                inRecord = false;
+                firstRecrod = false;
                 beginning = false;
                 break;
             case '\'':
                 if (!inRecord) {
-                    throw new IllegalStateException("illegal quote: " + line);
+                    throw new IllegalStateException("illegal quote: " + text(line, lineStart, length));
                 }
-                inQuote = !inQuote;
-                out.print('"');
+                out.append(copyFrom, pos - 1).append((byte) '"');
+                inQuote = true;
                 beginning = false;
                 break;
             case '"':
                 if (!inRecord) {
-                    throw new IllegalStateException("illegal double quote: " + line);
+                    throw new IllegalStateException("illegal double quote: " + text(line, lineStart, length));
                 }
-                out.print(' ');
+                out.append(copyFrom, pos - 1).append((byte) ' ');
                 beginning = false;
                 break;
             case '\\':
-                if (!inQuote) {
-                    throw new IllegalStateException("illegal escape char: " + line);
-                }
-                inEscape = true;
-                out.print(' ');
-                beginning = false;
-                break;
+                throw new IllegalStateException("illegal escape char: " + text(line, lineStart, length));
             case ',':
-                if (inQuote) {
-                    out.print(c);
-                    beginning = false;
-                } else if (inRecord) {
+                if (inRecord) {
                     if (firstRecrod) {
                         fieldMax++;
                     } else if (++fieldCount > fieldMax) {
-                        throw new IllegalStateException("field count exceeds " + fieldMax + "\n" + line);
+                        throw new IllegalStateException("field count exceeds " + fieldMax + "\n" + text(line, lineStart, length));
                     }
-                    out.print(c);
                     beginning = true;
-                } else if (!inRecord) {
-                    beginning = false;
+                    continue;
                 }
+                out.append(copyFrom, pos - 1);
+                beginning = false;
                 break;
             case ';':
-                if (inQuote) {
-                    out.print(c);
-                } else if (inRecord) {
-                    throw new IllegalStateException("illegal line termination (in record): " + line);
-                } else if (pos != line.length()) {
-                    throw new IllegalStateException("illegal line termination (line continued): " + line);
-                } else {
-                    return;
+                if (inRecord) {
+                    throw new IllegalStateException("illegal line termination (in record): " + text(line, lineStart, length));
+                } else if (pos != length) {
+                    throw new IllegalStateException("illegal line termination (line continued): " + text(line, lineStart, length));
                 }
-                beginning = false;
-                break;
+                out.append(copyFrom, pos - 1);
+                return rows;
             case 'N': // NULLは出力しない
-                if (beginning) {
-                    pos += 3;
-                } else {
-                    out.print(c);
+                if (!beginning) {
+                    continue;
                 }
+                out.append(copyFrom, pos - 1);
+                pos += 3;
                 beginning = false;
                 break;
             default:
-                out.print(c);
                 beginning = false;
-                break;
+                continue;
             }
+            copyFrom = pos;
         }
-        throw new IllegalStateException("illegal line termination (without ';'): " + line);
+        throw new IllegalStateException("illegal line termination (without ';'): " + text(line, lineStart, length));
     }
 
-    public static final String CSV_FILE_NAME_PATTERN = "^%s\\.([0-9]+)\\.csv(\\.zip)?$";
-    public static final String CSV_FILE_NAME_FORMAT = "%s.%03d.csv%s";
-    private String prevTableName;
-    private PrintWriter outRecords;
-    private long outLength;
-    private int outIndex;
-    
-    public PrintWriter getRecordWriter(String tableName, int lineLength, boolean useZip) throws IOException {
-        if (outRecords == null) {
-        } else if (!tableName.equals(prevTableName)) {
-            outRecords.close();
-            outRecords = null;
-            outLength = 0;
-            outIndex = 0;
-        } else if(outLength > 0 && outLength + lineLength > maxCsvLength) {
-            outRecords.close();
-            outRecords = null;
-            outLength = 0;
-            outIndex++;
-        } else {
-            outLength += lineLength;
-            return outRecords;
-        }
-        if (skip(tableName)) {
-            outRecords = DummyWriter.create();
-            if (!tableName.equals(prevTableName)) {
-                prevTableName = tableName;
-                System.err.println("skipping records: " + tableName + " (" + new Date() + ")");
-            }
-        } else {
-            if (!tableName.equals(prevTableName)) {
-                prevTableName = tableName;
-                System.err.println("retrieving records: " + tableName + " (" + new Date() + ")");
-            }
-            File file = new File(outDir, String.format(CSV_FILE_NAME_FORMAT, tableName, outIndex, useZip ? ".zip" : ""));
-            if (useZip) {
-                outRecords = new PrintWriter(new OutputStreamWriter(new ZipOutputStream(new FileOutputStream(file))));
+    private static String text(byte[] line, int begin, int end) {
+        return new String(line, begin, end - begin, UTF8);
+    }
+
+    /**
+     * 範囲の変換結果を順番に書き込む。INSERT文以外の行はreadStatements()で逐次処理する。
+     * @param skippedBytes  全ての範囲で共有し、読み飛ばしたバイト数をテーブル毎に合計する
+     */
+    private void writeRange(MappedRange range, InsertHandler handler, Map<String, Long> skippedBytes, String compressSuffix) throws IOException {
+        for (MappedRange.Segment segment : range.segments) {
+            if (segment.text != null) {
+                readStatements(new OffsetLineReader(new ByteArrayInputStream(segment.text), UTF8, segment.lineOffset), handler, skippedBytes);
+            } else if (segment.rows < 0) {
+                skipped(skippedBytes, segment.tableName, segment.length);
             } else {
-                outRecords = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file)));
+                statementOffset = segment.lineOffset;
+                writeRecords(segment.tableName, range.data, segment.offset, segment.length, segment.rows, compressSuffix);
             }
-            outLength = lineLength;
         }
-        return outRecords;
     }
-    
-    public static boolean firstCsvExists(File dir, String tableName) {
-        Pattern p = Pattern.compile(String.format(CSV_FILE_NAME_PATTERN, tableName));
-        for (String file : dir.list()) {
-            Matcher m = p.matcher(file);
-            if (m.matches() && Integer.parseInt("0" + m.group(1)) == 0) {
-                return true;
+
+    /**
+     * convMapped()の1つの範囲の変換結果。csvのバイト列と、INSERT文毎の区間およびINSERT文以外の行を入力順に保持する。
+     */
+    static class MappedRange {
+        private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(UTF8);
+        private final byte[] source;
+        private final long base;
+        final List<Segment> segments = new ArrayList<Segment>();
+        byte[] data = new byte[0x10000];
+        int length;
+
+        static class Segment {
+            /** INSERT文以外の行の場合のみnullでない */
+            byte[] text;
+            String tableName;
+            int offset;
+            int length;
+            /** 対象外のテーブルの場合は-1 */
+            int rows;
+            long lineOffset;
+        }
+
+        MappedRange(byte[] source, long base) {
+            this.source = source;
+            this.base = base;
+        }
+        MappedRange append(int begin, int end) {
+            int size = end - begin;
+            if (size > 0) {
+                ensureCapacity(size);
+                System.arraycopy(source, begin, data, length, size);
+                length += size;
             }
+            return this;
         }
-        return false;
-    }
-    
-    private static class DummyWriter extends PrintWriter {
-        public static DummyWriter create() throws IOException {
-            File dummy = File.createTempFile("dummy", "");
-            dummy.deleteOnExit();
-            return new DummyWriter(dummy);
+        MappedRange append(byte b) {
+            ensureCapacity(1);
+            data[length++] = b;
+            return this;
         }
-        private DummyWriter(File temp) throws IOException {
-            super(temp);
+        MappedRange newLine() {
+            ensureCapacity(LINE_SEPARATOR.length);
+            System.arraycopy(LINE_SEPARATOR, 0, data, length, LINE_SEPARATOR.length);
+            length += LINE_SEPARATOR.length;
+            return this;
         }
+        private void ensureCapacity(int size) {
+            if (length + size > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
+            }
+        }
+        void addText(int begin, int end) {
+            Segment s = new Segment();
+            s.text = Arrays.copyOfRange(source, begin, end);
+            s.lineOffset = base + begin;
+            segments.add(s);
+        }
+        void addSkipped(String tableName, int length) {
+            Segment s = new Segment();
+            s.tableName = tableName;
+            s.length = length;
+            s.rows = -1;
+            segments.add(s);
+        }
+        void addRecords(String tableName, int begin, int rows, long lineOffset) {
+            Segment s = new Segment();
+            s.tableName = tableName;
+            s.offset = begin;
+            s.length = length - begin;
+            s.rows = rows;
+            s.lineOffset = lineOffset;
+            segments.add(s);
+        }
+    }
+
+    // double(10,2)やenum('a','b')のように括弧内にカンマを含む型も受け付ける。受け付けない列はスキーマから漏れてcsvの列とずれる
+    public Pattern field = Pattern.compile("^  `(.+)` ([a-z]+(?:\\([^)]*\\))?[^,A-Z]*)( .+|,)$");
+    public Pattern end = Pattern.compile("^\\).+;$");
+    // BOOLEANはスキーマとフィールドの突き合わせが必要なのであえてtinyintをintegerに含めている
+    public Pattern integerPattern = Pattern.compile("^(int|bigint|tinyint).+$");
+    public Pattern floatPattern = Pattern.compile("^(float|double).+$");
+    // time(3)のような時刻のみの列はTIMESTAMPとして読めないのでSTRINGのままとする
+    public Pattern timestampPattern = Pattern.compile("^(datetime|timestamp).*$");
+    public static final String SCHEMA_FILE_NAME_FORMAT = "%s.schema";
+
+    public void saveSchema(String tableName, BufferedReader in) throws IOException {
+        saveSchema(tableName, lines(in));
+    }
+
+    private void saveSchema(String tableName, LineReader in) throws IOException {
+        if (skipTable(tableName)) {
+            System.err.println("skipping schema: " + tableName + " (" + new Date() + ")");
+            String line;
+            while ((line = in.readLine()) != null && !end.matcher(line).matches()) {
+            }
+            return;
+        }
+        File schema = new File(outDir, String.format(SCHEMA_FILE_NAME_FORMAT, tableName));
+        List<String> previous = schema.exists() ? readLines(schema) : null;
+        long previousModified = schema.lastModified();
+        PrintWriter out = new PrintWriter(schema);
+        System.err.println("retrieving schema: " + tableName + " (" + new Date() + ")");
+        List<String> names = new ArrayList<String>(), types = new ArrayList<String>();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (end.matcher(line).matches()) {
+                    break;
+                }
+                Matcher f = field.matcher(line);
+                if (!f.matches()) {
+                    continue;
+                }
+                String title = f.group(1);
+                String type;
+                if (integerPattern.matcher(f.group(2)).matches()) {
+                    type = "INTEGER";
+                } else if (floatPattern.matcher(f.group(2)).matches()) {
+                    type = "FLOAT";
+                } else if (timestampPattern.matcher(f.group(2)).matches()) {
+                    type = "TIMESTAMP";
+                } else {
+                    type = "STRING";
+                }
+                out.println(String.format("%s\t%s", title, type));
+                names.add(title);
+                types.add(type);
+            }
+        } finally {
+            out.close();
+        }
+        columns.put(tableName, new Columns(names.toArray(new String[names.size()]), types.toArray(new String[types.size()])));
+        List<File> kept = Collections.emptyList();
+        Integer pendingChunks = prepareWatermark(tableName, names, types);
+        if (pendingChunks == null) {
+            deleteChunks(tableName, 0);
+        } else {
+            // 前回の出力がまだアップロードされていないので、そのチャンクを残して続きの番号から書き出す
+            if (previous != null && !readLines(schema).equals(previous)) {
+                throw new IllegalStateException("schema changed while chunks are pending upload: " + tableName);
+            }
+            schema.setLastModified(previousModified);
+            deleteChunks(tableName, pendingChunks);
+            kept = listChunks(tableName);
+            keptChunks.put(tableName, kept.isEmpty() ? 0 : chunkIndex(tableName, kept.get(kept.size() - 1)) + 1);
+            System.err.println("keeping " + kept.size() + " chunks pending upload: " + tableName);
+        }
+        if (chunkListener != null) {
+            chunkListener.schemaSaved(tableName, schema);
+            for (File csv : kept) {
+                chunkListener.chunkClosed(tableName, chunkIndex(tableName, csv), csv);
+            }
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private static class Columns {
+        final String[] names;
+        final String[] types;
+        Columns(String[] names, String[] types) {
+            this.names = names;
+            this.types = types;
+        }
+    }
+    private final Map<String, Columns> columns = new ConcurrentHashMap<String, Columns>();
+
+    private Columns getColumns(String tableName) {
+        Columns result = columns.get(tableName);
+        if (result == null) {
+            throw new IllegalStateException("schema not found: " + tableName);
+        }
+        return result;
+    }
+
+    /**
+     * テーブル毎の計測値。対象外のテーブルは計測しない。
+     */
+    private class TableMetrics {
+        final boolean skipped;
+        final Metrics.Counter rows, bytes, chunks;
+        final Metrics.Histogram parseSeconds, writeSeconds;
+        TableMetrics(String tableName) {
+            skipped = skip(tableName);
+            rows = Metrics.counter("mysqldump2csv_rows_total", "Rows written per table.", "table", tableName);
+            bytes = Metrics.counter("mysqldump2csv_bytes_total", "Bytes written per table before compression.", "table", tableName);
+            chunks = Metrics.counter("mysqldump2csv_chunks_total", "Chunk files closed per table.", "table", tableName);
+            parseSeconds = Metrics.histogram("mysqldump2csv_parse_seconds", "Time to convert one INSERT statement.", Metrics.SECONDS_BUCKETS, "table", tableName);
+            writeSeconds = Metrics.histogram("mysqldump2csv_write_seconds", "Time to write the records of one INSERT statement.", Metrics.SECONDS_BUCKETS, "table", tableName);
+        }
+        void parsed(long start) {
+            if (!skipped) {
+                parseSeconds.observeNanos(System.nanoTime() - start);
+            }
+        }
+        void written(long start, int length, int rowCount) {
+            if (!skipped) {
+                writeSeconds.observeNanos(System.nanoTime() - start);
+                bytes.add(length);
+                rows.add(rowCount);
+            }
+        }
+    }
+    private final ConcurrentMap<String, TableMetrics> tableMetrics = new ConcurrentHashMap<String, TableMetrics>();
+
+    /**
+     * 読み込みスレッドとパーサーのスレッドから呼び出されるので、同じテーブルには常に同じインスタンスを返す。
+     */
+    private TableMetrics metrics(String tableName) {
+        TableMetrics metrics = tableMetrics.get(tableName);
+        if (metrics == null) {
+            metrics = new TableMetrics(tableName);
+            TableMetrics existing = tableMetrics.putIfAbsent(tableName, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+    private final ThreadLocal<RecordBuffer> workerBuffer = new ThreadLocal<RecordBuffer>() {
+        @Override
+        protected RecordBuffer initialValue() {
+            return new RecordBuffer();
+        }
+    };
+    private final AvroRecordBuffer avroBuffer = new AvroRecordBuffer();
+    private final ThreadLocal<AvroRecordBuffer> workerAvroBuffer = new ThreadLocal<AvroRecordBuffer>() {
+        @Override
+        protected AvroRecordBuffer initialValue() {
+            return new AvroRecordBuffer();
+        }
+    };
+
+    public void saveRecords(String tableName, String line, boolean useZip) throws IOException {
+        saveRecords(tableName, line, 0, useZip ? ZIP_SUFFIX : "");
+    }
+
+    /**
+     * @param valuesOffset  lineのうちVALUES以降が始まる位置
+     */
+    public void saveRecords(String tableName, String line, int valuesOffset, String compressSuffix) throws IOException {
+        long start = System.nanoTime();
+        if (useAvro) {
+            avroBuffer.clear();
+            convAvroRecords(line, valuesOffset, getColumns(tableName).types, watermarks.get(tableName), avroBuffer);
+            metrics(tableName).parsed(start);
+            writeAvroRecords(tableName, avroBuffer.buffer(), avroBuffer.rowEnds(), avroBuffer.rows());
+            return;
+        }
+        recordBuffer.clear();
+        convRecords(line, valuesOffset, watermarks.get(tableName), recordBuffer);
+        ByteBuffer records = recordBuffer.encode();
+        metrics(tableName).parsed(start);
+        writeRecords(tableName, records.array(), records.limit(), recordBuffer.rows(), compressSuffix);
+    }
+
+    private ConvertedRecords convRecords(String tableName, String line, int valuesOffset, long lineOffset) {
+        long start = System.nanoTime();
+        if (useAvro) {
+            AvroRecordBuffer buffer = workerAvroBuffer.get();
+            buffer.clear();
+            convAvroRecords(line, valuesOffset, getColumns(tableName).types, watermarks.get(tableName), buffer);
+            metrics(tableName).parsed(start);
+            return new ConvertedRecords(tableName, Arrays.copyOf(buffer.buffer(), buffer.length()), buffer.rows(), Arrays.copyOf(buffer.rowEnds(), buffer.rows()), lineOffset);
+        }
+        RecordBuffer buffer = workerBuffer.get();
+        buffer.clear();
+        convRecords(line, valuesOffset, watermarks.get(tableName), buffer);
+        ByteBuffer records = buffer.encode();
+        metrics(tableName).parsed(start);
+        return new ConvertedRecords(tableName, Arrays.copyOf(records.array(), records.limit()), buffer.rows(), null, lineOffset);
+    }
+
+    /**
+     * INSERT文のVALUES以降をcsv形式に変換してoutに追加する。
+     * 変換の必要がない文字の並びは1文字ずつではなくまとめてコピーする。
+     */
+    public void convRecords(String line, int valuesOffset, RecordBuffer out) {
+        convRecords(line, valuesOffset, null, out);
+    }
+
+    /**
+     * @param key   nullでなければキー列の値がkeyの前回値以下の行を出力しない
+     */
+    public void convRecords(String line, int valuesOffset, HighWatermark key, RecordBuffer out) {
+        boolean inRecord = false, inQuote = false, beginning = false, firstRecrod = true;
+        int pos = valuesOffset, copyFrom = valuesOffset, fieldMax = 1, fieldCount = 1;
+        int field = 0, keyBegin = -1, keyEnd = -1, rowStart = 0;
+        String max = null;
+        final int length = line.length();
+        while (pos < length) {
+            char c = line.charAt(pos++);
+            if (inQuote) {
+                // 引用符の中で変換が必要なのは ' " \ のみ
+                switch (c) {
+                case '\'':
+                    out.append(line, copyFrom, pos - 1).append('"');
+                    inQuote = false;
+                    break;
+                case '"':
+                    out.append(line, copyFrom, pos - 1).append(' ');
+                    break;
+                case '\\':
+                    out.append(line, copyFrom, pos - 1).append(' ');
+                    pos++;
+                    break;
+                default:
+                    continue;
+                }
+                copyFrom = pos;
+                continue;
+            }
+            switch (c) {
+            case '(':
+                if (inRecord) {
+                    throw new IllegalStateException("nested '(': " + line);
+                }
+                out.append(line, copyFrom, pos - 1);
+                inRecord = true;
+                beginning = true;
+                fieldCount = 1;
+                if (key != null) {
+                    rowStart = out.length();
+                    field = 0;
+                    keyBegin = key.index == 0 ? pos : -1;
+                    keyEnd = -1;
+                }
+                break;
+            case ')':
+                if (!inRecord) {
+                    throw new IllegalStateException("not corresponding ')': " + line);
+                }
+                out.append(line, copyFrom, pos - 1);
+                if (key == null) {
+                    out.newLine();
+                } else {
+                    if (field == key.index) {
+                        keyEnd = pos - 1;
+                    }
+                    String value = key.value(line, keyBegin, keyEnd);
+                    if (key.above(value)) {
+                        out.newLine();
+                        max = key.max(max, value);
+                    } else {
+                        out.setLength(rowStart);
+                    }
+                }
+                inRecord = false;
+                firstRecrod = false;
+                beginning = false;
+                break;
+            case '\'':
+                if (!inRecord) {
+                    throw new IllegalStateException("illegal quote: " + line);
+                }
+                out.append(line, copyFrom, pos - 1).append('"');
+                inQuote = true;
+                beginning = false;
+                break;
+            case '"':
+                if (!inRecord) {
+                    throw new IllegalStateException("illegal double quote: " + line);
+                }
+                out.append(line, copyFrom, pos - 1).append(' ');
+                beginning = false;
+                break;
+            case '\\':
+                throw new IllegalStateException("illegal escape char: " + line);
+            case ',':
+                if (inRecord) {
+                    if (key != null) {
+                        if (field == key.index) {
+                            keyEnd = pos - 1;
+                        }
+                        if (++field == key.index) {
+                            keyBegin = pos;
+                        }
+                    }
+                    if (firstRecrod) {
+                        fieldMax++;
+                    } else if (++fieldCount > fieldMax) {
+                        throw new IllegalStateException("field count exceeds " + fieldMax + "\n" + line);
+                    }
+                    beginning = true;
+                    continue;
+                }
+                out.append(line, copyFrom, pos - 1);
+                beginning = false;
+                break;
+            case ';':
+                if (inRecord) {
+                    throw new IllegalStateException("illegal line termination (in record): " + line);
+                } else if (pos != length) {
+                    throw new IllegalStateException("illegal line termination (line continued): " + line);
+                }
+                out.append(line, copyFrom, pos - 1);
+                if (max != null) {
+                    key.update(max);
+                }
+                return;
+            case 'N': // NULLは出力しない
+                if (!beginning) {
+                    continue;
+                }
+                out.append(line, copyFrom, pos - 1);
+                pos += 3;
+                beginning = false;
+                break;
+            default:
+                beginning = false;
+                continue;
+            }
+            copyFrom = pos;
+        }
+        throw new IllegalStateException("illegal line termination (without ';'): " + line);
+    }
+
+    /**
+     * 変換結果を蓄積する再利用可能なバッファ。出力ファイルの文字コード(プラットフォームのデフォルト)でバイト列に変換する。
+     */
+    public static class RecordBuffer {
+        private static final char[] LINE_SEPARATOR = System.getProperty("line.separator").toCharArray();
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private char[] buffer = new char[0x10000];
+        private ByteBuffer bytes = ByteBuffer.allocate(0x10000);
+        private int length;
+        private int rows;
+
+        public void clear() {
+            length = 0;
+            rows = 0;
+        }
+        public int length() {
+            return length;
+        }
+        public int rows() {
+            return rows;
+        }
+        /**
+         * 末尾の書きかけの行を取り消す。
+         */
+        void setLength(int length) {
+            this.length = length;
+        }
+        RecordBuffer append(String s, int begin, int end) {
+            int size = end - begin;
+            if (size > 0) {
+                ensureCapacity(size);
+                s.getChars(begin, end, buffer, length);
+                length += size;
+            }
+            return this;
+        }
+        RecordBuffer append(char c) {
+            ensureCapacity(1);
+            buffer[length++] = c;
+            return this;
+        }
+        RecordBuffer newLine() {
+            ensureCapacity(LINE_SEPARATOR.length);
+            System.arraycopy(LINE_SEPARATOR, 0, buffer, length, LINE_SEPARATOR.length);
+            length += LINE_SEPARATOR.length;
+            rows++;
+            return this;
+        }
+        private void ensureCapacity(int size) {
+            if (length + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + size));
+            }
+        }
+        /**
+         * @return  変換結果。返されるバッファは次回の呼び出しで再利用される。
+         */
+        public ByteBuffer encode() {
+            int capacity = (int) Math.ceil(length * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < capacity) {
+                bytes = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, capacity));
+            }
+            bytes.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(buffer, 0, length), bytes, true);
+            encoder.flush(bytes);
+            bytes.flip();
+            return bytes;
+        }
+    }
+
+    /**
+     * INSERT文のVALUES以降をAvroのバイナリ形式に変換してoutに追加する。
+     * csvとは異なり文字列のエスケープは元の文字に戻し、値はtypesに従って型変換する。
+     * @param types saveSchema()が出力した各フィールドの型
+     */
+    public void convAvroRecords(String line, int valuesOffset, String[] types, AvroRecordBuffer out) {
+        convAvroRecords(line, valuesOffset, types, null, out);
+    }
+
+    /**
+     * @param key   nullでなければキー列の値がkeyの前回値以下の行を出力しない
+     */
+    public void convAvroRecords(String line, int valuesOffset, String[] types, HighWatermark key, AvroRecordBuffer out) {
+        StringBuilder value = out.value;
+        String max = null, keyValue = null;
+        int pos = valuesOffset;
+        final int length = line.length();
+        while (pos < length) {
+            char c = line.charAt(pos++);
+            if (c == ',') {
+                continue;
+            } else if (c == ';') {
+                if (pos != length) {
+                    throw new IllegalStateException("illegal line termination (line continued): " + line);
+                }
+                if (max != null) {
+                    key.update(max);
+                }
+                return;
+            } else if (c != '(') {
+                throw new IllegalStateException("illegal char '" + c + "' between records: " + line);
+            }
+            int field = 0, rowStart = out.length();
+            while (true) {
+                if (field == types.length) {
+                    throw new IllegalStateException("field count exceeds " + types.length + "\n" + line);
+                }
+                if (pos >= length) {
+                    throw new IllegalStateException("illegal line termination (in record): " + line);
+                }
+                if (line.charAt(pos) == '\'') {
+                    value.setLength(0);
+                    pos = unescape(line, pos + 1, value);
+                    writeAvroValue(types[field], value, 0, value.length(), line, out);
+                    if (key != null && field == key.index) {
+                        keyValue = value.toString();
+                    }
+                } else {
+                    int begin = pos;
+                    while (pos < length && (c = line.charAt(pos)) != ',' && c != ')') {
+                        pos++;
+                    }
+                    if (pos - begin == 4 && line.startsWith("NULL", begin)) {
+                        out.writeNull();
+                        if (key != null && field == key.index) {
+                            keyValue = null;
+                        }
+                    } else {
+                        writeAvroValue(types[field], line, begin, pos, line, out);
+                        if (key != null && field == key.index) {
+                            keyValue = line.substring(begin, pos);
+                        }
+                    }
+                }
+                field++;
+                if (pos >= length) {
+                    throw new IllegalStateException("illegal line termination (in record): " + line);
+                }
+                c = line.charAt(pos++);
+                if (c == ')') {
+                    break;
+                } else if (c != ',') {
+                    throw new IllegalStateException("illegal char '" + c + "' after value: " + line);
+                }
+            }
+            if (field != types.length) {
+                throw new IllegalStateException("field count " + field + " is less than " + types.length + "\n" + line);
+            }
+            if (key == null) {
+                out.endRow();
+            } else if (key.above(keyValue)) {
+                out.endRow();
+                max = key.max(max, keyValue);
+            } else {
+                out.setLength(rowStart);
+            }
+        }
+        throw new IllegalStateException("illegal line termination (without ';'): " + line);
+    }
+
+    /**
+     * 引用符で囲まれた文字列のエスケープを元に戻してvalueに追加する。
+     * @return  閉じ引用符の次の位置
+     */
+    private static int unescape(String line, int pos, StringBuilder value) {
+        final int length = line.length();
+        int copyFrom = pos;
+        while (pos < length) {
+            char c = line.charAt(pos++);
+            if (c == '\'') {
+                value.append(line, copyFrom, pos - 1);
+                return pos;
+            } else if (c != '\\') {
+                continue;
+            }
+            value.append(line, copyFrom, pos - 1);
+            if (pos == length) {
+                break;
+            }
+            c = line.charAt(pos++);
+            switch (c) {
+            case '0':
+                value.append('\0');
+                break;
+            case 'b':
+                value.append('\b');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'Z':
+                value.append('\u001A');
+                break;
+            default:
+                value.append(c);
+                break;
+            }
+            copyFrom = pos;
+        }
+        throw new IllegalStateException("illegal line termination (in quote): " + line);
+    }
+
+    private static void writeAvroValue(String type, CharSequence s, int begin, int end, String line, AvroRecordBuffer out) {
+        try {
+            if ("INTEGER".equals(type)) {
+                long n = parseLong(s, begin, end);
+                out.writeNotNull();
+                out.writeLong(n);
+            } else if ("FLOAT".equals(type)) {
+                double d = Double.parseDouble(s.subSequence(begin, end).toString());
+                out.writeNotNull();
+                out.writeDouble(d);
+            } else if ("TIMESTAMP".equals(type)) {
+                long micros = parseTimestamp(s, begin, end);
+                if (micros == Long.MIN_VALUE) {
+                    out.writeNull();
+                } else {
+                    out.writeNotNull();
+                    out.writeLong(micros);
+                }
+            } else {
+                out.writeNotNull();
+                out.writeString(s, begin, end);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("illegal " + type + " value '" + s.subSequence(begin, end) + "': " + line, e);
+        }
+    }
+
+    static long parseLong(CharSequence s, int begin, int end) {
+        boolean negative = begin < end && s.charAt(begin) == '-';
+        int pos = negative ? begin + 1 : begin;
+        if (pos == end || end - pos > 19) {
+            throw new NumberFormatException();
+        }
+        long n = 0;
+        while (pos < end) {
+            int d = s.charAt(pos++) - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException();
+            }
+            n = n * 10 - d;
+            if (n > 0) {
+                throw new NumberFormatException();
+            }
+        }
+        if (!negative) {
+            if (n == Long.MIN_VALUE) {
+                throw new NumberFormatException();
+            }
+            n = -n;
+        }
+        return n;
+    }
+
+    /**
+     * "yyyy-MM-dd[ HH:mm:ss[.SSSSSS]]"形式の日時をUTCとみなしてエポックからのマイクロ秒に変換する。
+     * @return  ゼロ日付(0000-00-00)の場合はLong.MIN_VALUE
+     */
+    static long parseTimestamp(CharSequence s, int begin, int end) {
+        int length = end - begin;
+        if (length != 10 && length < 19) {
+            throw new NumberFormatException();
+        }
+        int year = digits(s, begin, 4), month = digits(s, begin + 5, 2), day = digits(s, begin + 8, 2);
+        if (s.charAt(begin + 4) != '-' || s.charAt(begin + 7) != '-') {
+            throw new NumberFormatException();
+        }
+        if (year == 0 || month == 0 || day == 0) {
+            return Long.MIN_VALUE;
+        }
+        long seconds = 0, micros = 0;
+        if (length >= 19) {
+            if (s.charAt(begin + 13) != ':' || s.charAt(begin + 16) != ':') {
+                throw new NumberFormatException();
+            }
+            seconds = digits(s, begin + 11, 2) * 3600L + digits(s, begin + 14, 2) * 60L + digits(s, begin + 17, 2);
+            if (length > 19) {
+                if (s.charAt(begin + 19) != '.' || length == 20 || length > 26) {
+                    throw new NumberFormatException();
+                }
+                micros = digits(s, begin + 20, length - 20);
+                for (int a = length - 20; a < 6; a++) {
+                    micros *= 10;
+                }
+            }
+        }
+        // 1970-01-01からの日数 (Howard Hinnantのdays_from_civil)
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        long days = era * 146097L + doe - 719468;
+        return (days * 86400 + seconds) * 1000000 + micros;
+    }
+
+    private static int digits(CharSequence s, int begin, int length) {
+        int n = 0;
+        for (int a = begin; a < begin + length; a++) {
+            int d = s.charAt(a) - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException();
+            }
+            n = n * 10 + d;
+        }
+        return n;
+    }
+
+    /**
+     * Avroに変換したレコードを蓄積する再利用可能なバッファ。
+     */
+    public static class AvroRecordBuffer extends AvroWriter.Encoder {
+        final StringBuilder value = new StringBuilder();
+        private int[] rowEnds = new int[0x100];
+        private int rows;
+
+        @Override
+        public void clear() {
+            super.clear();
+            rows = 0;
+        }
+        public int rows() {
+            return rows;
+        }
+        public int[] rowEnds() {
+            return rowEnds;
+        }
+        void endRow() {
+            if (rows == rowEnds.length) {
+                rowEnds = Arrays.copyOf(rowEnds, rows * 2);
+            }
+            rowEnds[rows++] = length();
+        }
+    }
+
+    public static final String CSV_FILE_NAME_PATTERN = "^%s\\.([0-9]+)\\.(csv(\\.zip|\\.gz)?|avro)$";
+    public static final String CSV_FILE_NAME_FORMAT = "%s.%03d.csv%s";
+    public static final String AVRO_FILE_NAME_FORMAT = "%s.%03d.avro";
+    public static final String ZIP_SUFFIX = ".zip";
+    public static final String GZIP_SUFFIX = ".gz";
+    /**
+     * gzip圧縮に使用するスレッド数。
+     */
+    public int compressThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService compressor;
+    private String prevTableName;
+    private OutputStream outRecords;
+    private AvroWriter outAvro;
+    private File outFile;
+    private long outLength;
+    private long outRows;
+    private int outIndex;
+
+    /**
+     * 変換済みのレコードをテーブルのcsvファイルに書き込む。
+     * 書き込み済みのバイト数または行数がmaxCsvLength, maxCsvRowsを超える場合は行の境界で次のチャンクに切り替える。
+     * @param records   1行毎に改行で終端されたcsvのバイト列
+     */
+    public void writeRecords(String tableName, byte[] records, int length, int rows, String compressSuffix) throws IOException {
+        writeRecords(tableName, records, 0, length, rows, compressSuffix);
+    }
+
+    /**
+     * @param offset    recordsのうち書き込む範囲の先頭
+     */
+    public void writeRecords(String tableName, byte[] records, int offset, int length, int rows, String compressSuffix) throws IOException {
+        long start = System.nanoTime();
+        writeChunks(tableName, records, offset, length, rows, compressSuffix);
+        metrics(tableName).written(start, length, rows);
+    }
+
+    private void writeChunks(String tableName, byte[] records, int offset, int length, int rows, String compressSuffix) throws IOException {
+        if (!tableName.equals(prevTableName)) {
+            File closed = closeRecordWriter();
+            outIndex = firstIndex(tableName);
+            saveCheckpoint(closed, tableName, 0);
+        }
+        final int limit = offset + length;
+        int pos = offset, done = 0;
+        if (resumeRows > 0) {
+            // 前回閉じたチャンクに書き込み済みの行を読み飛ばす
+            for (; done < resumeRows && done < rows; done++) {
+                pos = nextRow(records, pos, limit);
+            }
+            rows -= done;
+            resumeRows = 0;
+        }
+        while (pos < limit) {
+            if (outRecords == null) {
+                openRecordWriter(tableName, compressSuffix);
+            }
+            if (outLength + limit - pos <= maxCsvLength && outRows + rows <= maxCsvRows) {
+                outRecords.write(records, pos, limit - pos);
+                outLength += limit - pos;
+                outRows += rows;
+                return;
+            }
+            // 上限に収まる行までを書き込んでから次のチャンクに切り替える
+            int end = pos, count = 0;
+            while (count < rows && (outRows + count < maxCsvRows || outRows + count == 0)) {
+                int next = nextRow(records, end, limit);
+                if (outLength + next - pos > maxCsvLength && (outLength > 0 || count > 0)) {
+                    break;
+                }
+                end = next;
+                count++;
+            }
+            outRecords.write(records, pos, end - pos);
+            outLength += end - pos;
+            outRows += count;
+            rows -= count;
+            done += count;
+            pos = end;
+            File closed = closeRecordWriter();
+            outIndex++;
+            saveCheckpoint(closed, tableName, done);
+        }
+    }
+
+    /**
+     * Avroに変換済みのレコードをテーブルのAvroファイルに追加する。チャンクの切り替えはwriteRecords()と同様。
+     * @param rowEnds   recordsにおける各レコードの終端位置
+     */
+    public void writeAvroRecords(String tableName, byte[] records, int[] rowEnds, int rows) throws IOException {
+        long start = System.nanoTime();
+        appendAvroRecords(tableName, records, rowEnds, rows);
+        metrics(tableName).written(start, rows > 0 ? rowEnds[rows - 1] : 0, rows);
+    }
+
+    private void appendAvroRecords(String tableName, byte[] records, int[] rowEnds, int rows) throws IOException {
+        if (!tableName.equals(prevTableName)) {
+            File closed = closeRecordWriter();
+            outIndex = firstIndex(tableName);
+            saveCheckpoint(closed, tableName, 0);
+        }
+        int pos = 0, first = 0;
+        if (resumeRows > 0) {
+            first = Math.min(resumeRows, rows);
+            pos = first > 0 ? rowEnds[first - 1] : 0;
+            resumeRows = 0;
+        }
+        for (int r = first; r < rows; r++) {
+            int end = rowEnds[r];
+            if (outAvro != null && outRows > 0 && (outLength + end - pos > maxCsvLength || outRows >= maxCsvRows)) {
+                File closed = closeRecordWriter();
+                outIndex++;
+                saveCheckpoint(closed, tableName, r);
+            }
+            if (outAvro == null) {
+                openAvroWriter(tableName);
+            }
+            outAvro.append(records, pos, end - pos);
+            outLength += end - pos;
+            outRows++;
+            pos = end;
+        }
+    }
+
+    private void openAvroWriter(String tableName) throws IOException {
+        Columns c = getColumns(tableName);
+        String schema = AvroWriter.schema(tableName, c.names, c.types);
+        if (skip(tableName)) {
+            outAvro = new AvroWriter(new DummyOutputStream(), schema);
+            if (!tableName.equals(prevTableName)) {
+                prevTableName = tableName;
+                System.err.println("skipping records: " + tableName + " (" + new Date() + ")");
+            }
+        } else {
+            if (!tableName.equals(prevTableName)) {
+                prevTableName = tableName;
+                System.err.println("retrieving records: " + tableName + " (" + new Date() + ")");
+            }
+            outFile = new File(outDir, String.format(AVRO_FILE_NAME_FORMAT, tableName, outIndex));
+            outAvro = new AvroWriter(new BufferedOutputStream(new FileOutputStream(outFile), 0x10000), schema);
+        }
+        outLength = 0;
+        outRows = 0;
+    }
+
+    private static int nextRow(byte[] records, int pos, int length) {
+        while (pos < length) {
+            if (records[pos++] == '\n') {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private void openRecordWriter(String tableName, String compressSuffix) throws IOException {
+        if (skip(tableName)) {
+            outRecords = new DummyOutputStream();
+            if (!tableName.equals(prevTableName)) {
+                prevTableName = tableName;
+                System.err.println("skipping records: " + tableName + " (" + new Date() + ")");
+            }
+        } else {
+            if (!tableName.equals(prevTableName)) {
+                prevTableName = tableName;
+                System.err.println("retrieving records: " + tableName + " (" + new Date() + ")");
+            }
+            File file = new File(outDir, String.format(CSV_FILE_NAME_FORMAT, tableName, outIndex, compressSuffix));
+            outFile = file;
+            if (ZIP_SUFFIX.equals(compressSuffix)) {
+                ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+                zip.putNextEntry(new ZipEntry(String.format(CSV_FILE_NAME_FORMAT, tableName, outIndex, "")));
+                outRecords = zip;
+            } else if (GZIP_SUFFIX.equals(compressSuffix)) {
+                if (compressor == null) {
+                    compressor = Executors.newFixedThreadPool(compressThreads);
+                }
+                outRecords = new ParallelGZIPOutputStream(new FileOutputStream(file), compressor, compressThreads * 2);
+            } else {
+                outRecords = new BufferedOutputStream(new FileOutputStream(file), 0x10000);
+            }
+        }
+        outLength = 0;
+        outRows = 0;
+    }
+
+    /**
+     * @return  閉じたファイル。ファイルを開いていなかった場合はnull
+     */
+    private File closeRecordWriter() throws IOException {
+        return closeRecordWriter(true);
+    }
+
+    private File closeRecordWriter(boolean notify) throws IOException {
+        if (outRecords != null || outAvro != null) {
+            Closeable out = outRecords != null ? outRecords : outAvro;
+            File file = outFile;
+            outRecords = null;
+            outAvro = null;
+            outFile = null;
+            out.close();
+            if (file != null) {
+                metrics(prevTableName).chunks.inc();
+            }
+            if (notify && chunkListener != null && file != null) {
+                chunkListener.chunkClosed(prevTableName, outIndex, file);
+            }
+            return file;
+        }
+        return null;
+    }
+
+    public static final String WATERMARK_FILE_NAME_FORMAT = "%s.watermark";
+    /**
+     * 変換を終えたがアップロードが完了していない前回値。アップロード後にcommitWatermark()でWATERMARK_FILE_NAME_FORMATに置き換える。
+     */
+    public static final String PENDING_WATERMARK_FILE_NAME_FORMAT = "%s.watermark.pending";
+    public static final String INCREMENTAL_FILE_NAME_FORMAT = "%s.incremental";
+
+    /**
+     * テーブルが差分出力の対象であれば前回値を読み込む。前回値がある場合は差分であることを示すINCREMENTAL_FILE_NAME_FORMATのファイルを作成し、
+     * ない場合(初回)は全件を出力してそのファイルを削除する。
+     * 未アップロードの前回値(PENDING_WATERMARK_FILE_NAME_FORMAT)がある場合は、その値より後の行のみを出力する。
+     * INCREMENTAL_FILE_NAME_FORMATのファイルはアップロード済みの前回値に従う。
+     * @return  未アップロードの前回値を使う場合はその出力のチャンク数。それ以外はnull
+     */
+    private Integer prepareWatermark(String tableName, List<String> names, List<String> types) throws IOException {
+        String column = incrementalKeys.get(tableName);
+        if (column == null) {
+            column = incrementalKeys.get("*");
+        }
+        int index = column == null ? -1 : names.indexOf(column);
+        File incremental = new File(outDir, String.format(INCREMENTAL_FILE_NAME_FORMAT, tableName));
+        if (index < 0) {
+            if (column != null && incrementalKeys.containsKey(tableName)) {
+                throw new IllegalArgumentException("key column not found: " + tableName + "." + column);
+            }
+            incremental.delete();
+            return null;
+        }
+        Properties pending = loadWatermark(PENDING_WATERMARK_FILE_NAME_FORMAT, tableName, column);
+        Properties committed = loadWatermark(WATERMARK_FILE_NAME_FORMAT, tableName, column);
+        String low = pending != null ? pending.getProperty("value") : committed != null ? committed.getProperty("value") : null;
+        HighWatermark key = new HighWatermark(column, index, types.get(index), low);
+        watermarks.put(tableName, key);
+        if (committed == null) {
+            incremental.delete();
+        } else {
+            PrintWriter out = new PrintWriter(incremental);
+            try {
+                out.println(String.format("%s\t%s", column, committed.getProperty("value")));
+            } finally {
+                out.close();
+            }
+        }
+        System.err.println("incremental: " + tableName + "." + column + (low == null ? " (all rows)" : " > " + low) + (pending != null ? " (pending upload)" : ""));
+        return pending != null ? Integer.valueOf(pending.getProperty("chunks", String.valueOf(Integer.MAX_VALUE))) : null;
+    }
+
+    /**
+     * @return  前回値の未アップロード分があればその値、なければアップロード済みの値
+     */
+    private String loadWatermark(String tableName, String column) throws IOException {
+        Properties p = loadWatermark(PENDING_WATERMARK_FILE_NAME_FORMAT, tableName, column);
+        if (p == null) {
+            p = loadWatermark(WATERMARK_FILE_NAME_FORMAT, tableName, column);
+        }
+        return p != null ? p.getProperty("value") : null;
+    }
+
+    /**
+     * @return  前回値(column, value)。ファイルがないかキー列が変わった場合はnull
+     */
+    private Properties loadWatermark(String format, String tableName, String column) throws IOException {
+        File file = new File(outDir, String.format(format, tableName));
+        if (!file.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return column.equals(p.getProperty("column")) ? p : null;
+    }
+
+    /**
+     * 全ての入力の変換が完了した後に、出力した行のキー列の最大値を次回の前回値として保存する。出力した行がないテーブルは前回値を維持する。
+     * アップロードが完了するまでは未アップロードの前回値とし、その値までを出力したチャンクの数(chunks)を合わせて記録する。
+     */
+    public void saveWatermarks() throws IOException {
+        for (Map.Entry<String, HighWatermark> e : watermarks.entrySet()) {
+            HighWatermark key = e.getValue();
+            String high = key.high();
+            if (high == null) {
+                continue;
+            }
+            Properties p = new Properties();
+            p.setProperty("column", key.column);
+            p.setProperty("value", high);
+            List<File> chunks = listChunks(e.getKey());
+            p.setProperty("chunks", String.valueOf(chunks.isEmpty() ? 0 : chunkIndex(e.getKey(), chunks.get(chunks.size() - 1)) + 1));
+            File file = new File(outDir, String.format(PENDING_WATERMARK_FILE_NAME_FORMAT, e.getKey()));
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename: " + tmp);
+            }
+            System.err.println("high watermark: " + e.getKey() + "." + key.column + " = " + high + " (pending upload)");
+        }
+    }
+
+    /**
+     * テーブルの全てのチャンクのロードが完了した後に、未アップロードの前回値を次回の前回値として確定する。
+     * @return  確定する前回値がなかった場合はfalse
+     */
+    public static boolean commitWatermark(File dir, String tableName) throws IOException {
+        File pending = new File(dir, String.format(PENDING_WATERMARK_FILE_NAME_FORMAT, tableName));
+        if (!pending.exists()) {
+            return false;
+        }
+        File file = new File(dir, String.format(WATERMARK_FILE_NAME_FORMAT, tableName));
+        if (!pending.renameTo(file)) {
+            throw new IOException("failed to rename: " + pending);
+        }
+        System.err.println("committed high watermark: " + tableName);
+        return true;
+    }
+
+    /**
+     * 前回出力した行のキー列の最大値(low)と、今回出力した行のキー列の最大値(high)を保持する。
+     * INTEGERとFLOATは数値として、それ以外(TIMESTAMP等)は文字列として比較する。highは変換スレッドから並行して更新される。
+     */
+    public static class HighWatermark {
+        final String column;
+        final int index;
+        final String type;
+        final String low;
+        private String high;
+
+        HighWatermark(String column, int index, String type, String low) {
+            this.column = column;
+            this.index = index;
+            this.type = type;
+            this.low = low;
+        }
+
+        /**
+         * INSERT文のうち[begin, end)の範囲の値を引用符を除いて返す。NULLの場合はnull。
+         */
+        String value(String line, int begin, int end) {
+            if (begin < 0 || end < begin || (end - begin == 4 && line.startsWith("NULL", begin))) {
+                return null;
+            }
+            if (end - begin >= 2 && line.charAt(begin) == '\'' && line.charAt(end - 1) == '\'') {
+                return line.substring(begin + 1, end - 1);
+            }
+            return line.substring(begin, end);
+        }
+
+        /**
+         * @return  valueが前回値より大きい場合はtrue。初回は全てtrue、ただし2回目以降はNULLは対象外とする。
+         */
+        boolean above(String value) {
+            if (low == null) {
+                return true;
+            }
+            return value != null && compare(value, low) > 0;
+        }
+
+        String max(String a, String b) {
+            if (a == null) {
+                return b;
+            } else if (b == null) {
+                return a;
+            }
+            return compare(a, b) >= 0 ? a : b;
+        }
+
+        synchronized void update(String value) {
+            high = max(high, value);
+        }
+
+        synchronized String high() {
+            return high;
+        }
+
+        int compare(String a, String b) {
+            try {
+                if ("INTEGER".equals(type)) {
+                    long x = parseLong(a, 0, a.length()), y = parseLong(b, 0, b.length());
+                    return x < y ? -1 : x == y ? 0 : 1;
+                } else if ("FLOAT".equals(type)) {
+                    return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("illegal key value of " + column + ": " + a + ", " + b, e);
+            }
+            return a.compareTo(b);
+        }
+    }
+
+    public static final String CHECKPOINT_FILE_NAME = "mysqldump2csv.checkpoint";
+    /**
+     * 現在書き込み中のINSERT文の先頭のバイト位置。
+     */
+    private long statementOffset = -1;
+
+    /**
+     * チャンクを閉じた直後に、続きを書き込むINSERT文の位置とそのうち書き込み済みの行数を記録する。
+     * 閉じたチャンクはディスクに同期してからチェックポイントを置き換える。
+     * @param closed    閉じたチャンク。nullの場合は何もしない
+     * @param rows      statementOffsetの文のうち閉じたチャンクまでに書き込んだ行数
+     */
+    private void saveCheckpoint(File closed, String tableName, int rows) throws IOException {
+        if (closed == null || checkpointFile == null || statementOffset < 0) {
+            return;
+        }
+        sync(closed);
+        Checkpoint checkpoint = new Checkpoint(input, statementOffset, rows, tableName, outIndex, closed.getName());
+        for (Map.Entry<String, HighWatermark> e : watermarks.entrySet()) {
+            String high = e.getValue().high();
+            if (high != null) {
+                checkpoint.highs.put(e.getKey(), high);
+            }
+        }
+        checkpoint.save(checkpointFile);
+    }
+
+    private static void sync(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * チェックポイントのテーブルであれば書きかけのチャンクを削除してから続きの番号を返す。
+     * 未アップロードのチャンクを残したテーブルはその続きの番号、それ以外は0を返す。
+     */
+    private int firstIndex(String tableName) throws IOException {
+        if (!tableName.equals(resumeTable)) {
+            Integer kept = keptChunks.get(tableName);
+            return kept != null ? kept : 0;
+        }
+        resumeTable = null;
+        deleteChunks(tableName, resumeIndex);
+        return resumeIndex;
+    }
+
+    /**
+     * @return  テーブルのチャンクを番号順に並べたもの
+     */
+    private List<File> listChunks(final String tableName) {
+        List<File> chunks = new ArrayList<File>();
+        for (String file : outDir.list()) {
+            if (chunkIndex(tableName, new File(outDir, file)) >= 0) {
+                chunks.add(new File(outDir, file));
+            }
+        }
+        Collections.sort(chunks, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return chunkIndex(tableName, a) - chunkIndex(tableName, b);
+            }
+        });
+        return chunks;
+    }
+
+    /**
+     * @return  テーブルのチャンクの番号。チャンクでなければ-1
+     */
+    private static int chunkIndex(String tableName, File file) {
+        Matcher m = Pattern.compile(String.format(CSV_FILE_NAME_PATTERN, Pattern.quote(tableName))).matcher(file.getName());
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * テーブルのチャンクのうち番号がfromIndex以上のものを削除する。前回の実行の残りや書きかけのチャンクを再度アップロードしないようにする。
+     */
+    private void deleteChunks(String tableName, int fromIndex) throws IOException {
+        Pattern p = Pattern.compile(String.format(CSV_FILE_NAME_PATTERN, Pattern.quote(tableName)));
+        for (String file : outDir.list()) {
+            Matcher m = p.matcher(file);
+            if (m.matches() && Integer.parseInt(m.group(1)) >= fromIndex) {
+                if (!new File(outDir, file).delete()) {
+                    throw new IOException("failed to delete chunk: " + file);
+                }
+                System.err.println("deleted chunk: " + file);
+            }
+        }
+    }
+
+    /**
+     * チェックポイントから再開する。次に読み込むINSERT文のうち書き込み済みの行を読み飛ばし、テーブルのチャンク番号を引き継ぐ。
+     */
+    void resume(Checkpoint checkpoint) throws IOException {
+        // 差分出力の途中経過を引き継ぐ。キー列の位置は使わないので-1とする
+        for (Map.Entry<String, String> e : checkpoint.highs.entrySet()) {
+            String column = incrementalKeys.get(e.getKey());
+            if (column == null) {
+                column = incrementalKeys.get("*");
+            }
+            if (column != null) {
+                HighWatermark key = new HighWatermark(column, -1, null, loadWatermark(e.getKey(), column));
+                key.update(e.getValue());
+                watermarks.put(e.getKey(), key);
+            }
+        }
+        if (checkpoint.table == null) {
+            return;
+        }
+        resumeTable = checkpoint.table;
+        resumeIndex = checkpoint.index;
+        resumeRows = checkpoint.rows;
+        // CREATE TABLE文はチェックポイントより前にあるので保存済みのschemaファイルから読み込む
+        File schema = new File(outDir, String.format(SCHEMA_FILE_NAME_FORMAT, resumeTable));
+        List<String> names = new ArrayList<String>(), types = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(schema));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                names.add(f[0]);
+                types.add(f[1]);
+            }
+        } finally {
+            in.close();
+        }
+        columns.put(resumeTable, new Columns(names.toArray(new String[names.size()]), types.toArray(new String[types.size()])));
+        HighWatermark restored = watermarks.remove(resumeTable);
+        prepareWatermark(resumeTable, names, types);
+        HighWatermark key = watermarks.get(resumeTable);
+        if (key != null && restored != null) {
+            key.update(restored.high());
+        }
+    }
+
+    /**
+     * 変換を再開するための位置。CHECKPOINT_FILE_NAMEのファイルにProperties形式で保存する。
+     */
+    static class Checkpoint {
+        /** 入力のダンプファイル */
+        final String input;
+        /** 次に読み込むINSERT文の先頭のバイト位置(圧縮ファイルの場合は展開後の位置) */
+        final long offset;
+        /** offsetのINSERT文のうち書き込み済みの行数 */
+        final int rows;
+        /** offsetのINSERT文のテーブル。入力ファイルの先頭から再開する場合はnull */
+        final String table;
+        /** tableの次のチャンク番号 */
+        final int index;
+        /** 最後に正常に閉じたチャンク */
+        final String closed;
+        /** 差分出力のテーブル毎のキー列の最大値 */
+        final Map<String, String> highs = new HashMap<String, String>();
+
+        Checkpoint(String input, long offset, int rows, String table, int index, String closed) {
+            this.input = input;
+            this.offset = offset;
+            this.rows = rows;
+            this.table = table;
+            this.index = index;
+            this.closed = closed;
+        }
+
+        static Checkpoint load(File file) throws IOException {
+            Properties p = new Properties();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            Checkpoint checkpoint = new Checkpoint(p.getProperty("input"), Long.parseLong(p.getProperty("offset")), Integer.parseInt(p.getProperty("rows")),
+                p.getProperty("table"), Integer.parseInt(p.getProperty("index")), p.getProperty("closed"));
+            for (String name : p.stringPropertyNames()) {
+                if (name.startsWith("high.")) {
+                    checkpoint.highs.put(name.substring("high.".length()), p.getProperty(name));
+                }
+            }
+            return checkpoint;
+        }
+
+        /**
+         * 一時ファイルに書き込んでから置き換える。
+         */
+        void save(File file) throws IOException {
+            Properties p = new Properties();
+            p.setProperty("input", input);
+            p.setProperty("offset", String.valueOf(offset));
+            p.setProperty("rows", String.valueOf(rows));
+            p.setProperty("index", String.valueOf(index));
+            if (table != null) {
+                p.setProperty("table", table);
+            }
+            if (closed != null) {
+                p.setProperty("closed", closed);
+            }
+            for (Map.Entry<String, String> e : highs.entrySet()) {
+                p.setProperty("high." + e.getKey(), e.getValue());
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                p.store(out, null);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename: " + tmp);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s offset=%,d rows=%d table=%s index=%d closed=%s", input, offset, rows, table, index, closed);
+        }
+    }
+
+    public interface ChunkListener {
+        /**
+         * saveSchema()がschemaファイルを書き終えた時に呼び出される。
+         */
+        void schemaSaved(String tableName, File schema) throws IOException;
+        /**
+         * csvファイルを閉じた時に呼び出される。同じテーブルのファイルはindexの順に通知される。
+         */
+        void chunkClosed(String tableName, int index, File csv) throws IOException;
+    }
+
+    /**
+     * @return  前回値より後の差分のみを出力したテーブルであればtrue
+     */
+    public static boolean incremental(File dir, String tableName) {
+        return new File(dir, String.format(INCREMENTAL_FILE_NAME_FORMAT, tableName)).exists();
+    }
+
+    public static boolean firstCsvExists(File dir, String tableName) {
+        Pattern p = Pattern.compile(String.format(CSV_FILE_NAME_PATTERN, tableName));
+        for (String file : dir.list()) {
+            Matcher m = p.matcher(file);
+            if (m.matches() && Integer.parseInt("0" + m.group(1)) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * skip対象のテーブルの出力を捨てる。ファイルは作成しない。
+     */
+    private static class DummyOutputStream extends OutputStream {
         @Override
-        public void println() {}
-        @Override
-        public void println(String s) {}
-        @Override
-        public void print(String s) {}
-        @Override
-        public void print(char c) {}
+        public void write(int b) {}
         @Override
-        public void print(int c) {}
+        public void write(byte[] b, int off, int len) {}
     }
 }
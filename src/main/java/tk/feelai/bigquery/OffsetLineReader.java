@@ -0,0 +1,124 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 入力のバイト位置を数えながら1行ずつ読み込む。position()は次に読み込む行の先頭のバイト位置を返す。
+ * 行の区切りはBufferedReaderと同じく\n, \r, \r\nとし、ASCII互換の文字コード(UTF-8, EUC-JP等)を前提とする。
+ */
+public class OffsetLineReader implements LineReader {
+
+    private final InputStream in;
+    private final Charset charset;
+    private byte[] buffer = new byte[0x10000];
+    private int pos;
+    private int limit;
+    private long position;
+    private byte[] line = new byte[0x1000];
+
+    public OffsetLineReader(InputStream in, Charset charset) {
+        this(in, charset, 0);
+    }
+
+    /**
+     * @param position  inの先頭の入力全体におけるバイト位置
+     */
+    public OffsetLineReader(InputStream in, Charset charset, long position) {
+        this.in = in;
+        this.charset = charset;
+        this.position = position;
+    }
+
+    /**
+     * @return  次に読み込む行の先頭のバイト位置
+     */
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        int lineLength = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return lineLength == 0 ? null : decode(line, 0, lineLength);
+            }
+            int start = pos;
+            while (pos < limit && buffer[pos] != '\n' && buffer[pos] != '\r') {
+                pos++;
+            }
+            if (pos < limit) {
+                // 改行が見つかった場合はバッファから直接文字列にする
+                boolean carriageReturn = buffer[pos] == '\r';
+                int end = pos++;
+                position += pos - start;
+                String result;
+                if (lineLength == 0) {
+                    result = decode(buffer, start, end);
+                } else {
+                    line = append(line, lineLength, buffer, start, end - start);
+                    result = decode(line, 0, lineLength + end - start);
+                }
+                if (carriageReturn) {
+                    // \r\nの\nも読み飛ばし、position()が次の行の先頭を指すようにする
+                    if ((pos < limit || fill()) && buffer[pos] == '\n') {
+                        pos++;
+                        position++;
+                    }
+                }
+                return result;
+            }
+            line = append(line, lineLength, buffer, start, pos - start);
+            lineLength += pos - start;
+            position += pos - start;
+        }
+    }
+
+    private String decode(byte[] bytes, int begin, int end) {
+        return new String(bytes, begin, end - begin, charset);
+    }
+
+    private static byte[] append(byte[] dest, int length, byte[] src, int off, int len) {
+        if (length + len > dest.length) {
+            dest = Arrays.copyOf(dest, Math.max(dest.length * 2, length + len));
+        }
+        System.arraycopy(src, off, dest, length, len);
+        return dest;
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = in.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,145 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 入力を一定サイズのブロックに区切り、ブロック毎に独立したgzipメンバーとしてスレッドプール上で圧縮する。
+ * 圧縮結果は入力順に連結して出力するため、全体として正しいマルチメンバー形式のgzipファイルになる。
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 0x100000;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] block;
+    private int length;
+    private boolean empty = true;
+    private boolean closed;
+
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks) {
+        this(out, executor, DEFAULT_BLOCK_SIZE, maxPendingBlocks);
+    }
+
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxPendingBlocks) {
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = maxPendingBlocks;
+        block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[length++] = (byte) b;
+        if (length == blockSize) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int size = Math.min(len, blockSize - length);
+            System.arraycopy(b, off, block, length, size);
+            length += size;
+            off += size;
+            len -= size;
+            if (length == blockSize) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * 圧縮済みのブロックを全て書き出す。圧縮途中の端数のブロックは書き出さない。
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeBlock(pending.poll());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (length > 0 || empty) {
+                submit();
+            }
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int size = length;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return compress(data, size);
+            }
+        }));
+        block = new byte[blockSize];
+        length = 0;
+        empty = false;
+        while (pending.size() > maxPendingBlocks) {
+            writeBlock(pending.poll());
+        }
+    }
+
+    private void writeBlock(Future<byte[]> future) throws IOException {
+        try {
+            out.write(future.get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int size) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(size / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer, 0x10000);
+        gzip.write(data, 0, size);
+        gzip.close();
+        return buffer.toByteArray();
+    }
+}
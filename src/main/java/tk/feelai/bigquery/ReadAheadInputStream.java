@@ -0,0 +1,177 @@
+package tk.feelai.bigquery;
+
+/*
+ * Copyright (c) 2017 Hiroshi Matsuda.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 専用のスレッドで入力を先読みし、一定サイズのブロックを有界キュー経由で受け渡す。
+ * 展開処理を含む入力を包むことで、展開と呼び出し側の解析を並行して行う。
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 0x40000;
+    public static final int DEFAULT_MAX_BLOCKS = 16;
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private final Thread thread;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private byte[] block;
+    private int pos;
+
+    public ReadAheadInputStream(InputStream in, String name) {
+        this(in, name, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS);
+    }
+
+    /**
+     * @param name  先読みスレッドの名前
+     * @param maxBlocks キューに保持するブロック数の上限
+     */
+    public ReadAheadInputStream(final InputStream in, String name, final int blockSize, int maxBlocks) {
+        queue = new ArrayBlockingQueue<byte[]>(maxBlocks);
+        thread = new Thread("read-ahead " + name) {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] buffer = new byte[blockSize];
+                        int length = 0, n = 0;
+                        while (length < blockSize && (n = in.read(buffer, length, blockSize - length)) >= 0) {
+                            length += n;
+                        }
+                        if (length > 0 && !put(length == blockSize ? buffer : Arrays.copyOf(buffer, length))) {
+                            return;
+                        }
+                        if (n < 0) {
+                            break;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                    put(END);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return  閉じられた場合はfalse
+     */
+    private boolean put(byte[] data) {
+        try {
+            while (!queue.offer(data, 1, TimeUnit.SECONDS)) {
+                if (closed) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return  終端に達した場合はfalse
+     */
+    private boolean next() throws IOException {
+        if (block == END) {
+            return false;
+        }
+        if (block != null && pos < block.length) {
+            return true;
+        }
+        try {
+            block = queue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        pos = 0;
+        if (block == END) {
+            Throwable e = failure;
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            } else if (e != null) {
+                throw new IOException(e);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) {
+            return -1;
+        }
+        return block[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        int size = Math.min(len, block.length - pos);
+        System.arraycopy(block, pos, b, off, size);
+        pos += size;
+        return size;
+    }
+
+    @Override
+    public int available() {
+        return block == null || block == END ? 0 : block.length - pos;
+    }
+
+    /**
+     * 先読みスレッドを止め、元の入力を閉じる。
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        queue.clear();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        block = END;
+    }
+}